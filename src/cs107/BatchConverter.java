@@ -0,0 +1,217 @@
+package cs107;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Converts all the images of a directory between "PNG" and "QOI".
+ * Each file goes through three steps : it is read on the I/O pool, converted on the CPU pool
+ * and written on the I/O pool, so that reading and writing files never blocks the codec threads.
+ * At most ioThreads + cpuThreads files are in flight (read and not yet written), which bounds the memory
+ * used by a batch whatever the size of the directory.
+ * A file which cannot be converted is reported and does not stop the others.
+ */
+public final class BatchConverter {
+
+    /**
+     * Direction of the conversion
+     */
+    public enum Direction {
+        PNG_TO_QOI(".png", ".qoi"),
+        QOI_TO_PNG(".qoi", ".png");
+
+        private final String from;
+        private final String to;
+
+        Direction(String from, String to){
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Result of a batch conversion
+     * @param files (int) - Number of converted files
+     * @param errors (List of String) - One message per file which could not be converted
+     * @param bytesRead (long) - Total size of the input files
+     * @param bytesWritten (long) - Total size of the output files
+     * @param nanos (long) - Duration of the whole batch
+     */
+    public record Report(int files, List<String> errors, long bytesRead, long bytesWritten, long nanos){
+
+        /**
+         * @return (double) - Number of converted files per second
+         */
+        public double filesPerSecond(){
+            return files * 1e9 / nanos;
+        }
+
+        /**
+         * @return (double) - Number of megabytes read per second
+         */
+        public double megabytesPerSecond(){
+            return bytesRead * 1e3 / nanos;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%d files converted, %d failed in %.2f s : %.1f files/s, %.1f MB/s (%d bytes read, %d bytes written)",
+                    files, errors.size(), nanos / 1e9, filesPerSecond(), megabytesPerSecond(), bytesRead, bytesWritten);
+        }
+    }
+
+    // Hide default constructor
+    private BatchConverter(){}
+
+    /**
+     * Convert the files of a directory using the default pools :
+     * one CPU thread per core and twice as many I/O threads
+     * @param input (Path) - Directory containing the files to convert
+     * @param output (Path) - Directory where to store the converted files, created if needed
+     * @param direction (Direction) - Direction of the conversion
+     * @return (Report) - Statistics of the conversion
+     */
+    public static Report convert(Path input, Path output, Direction direction){
+        var cores = Runtime.getRuntime().availableProcessors();
+        return convert(input, output, direction, 2 * cores, cores);
+    }
+
+    /**
+     * Convert the files of a directory. The file input/name.png is converted to output/name.qoi
+     * (or the opposite, depending on the direction).
+     * @param input (Path) - Directory containing the files to convert
+     * @param output (Path) - Directory where to store the converted files, created if needed
+     * @param direction (Direction) - Direction of the conversion
+     * @param ioThreads (int) - Number of threads reading and writing the files
+     * @param cpuThreads (int) - Number of threads encoding and decoding the images
+     * @return (Report) - Statistics of the conversion
+     * @throws AssertionError if one of the parameters is null or one of the pools is empty
+     */
+    public static Report convert(Path input, Path output, Direction direction, int ioThreads, int cpuThreads){
+        assert input != null && output != null && direction != null;
+        assert ioThreads > 0 && cpuThreads > 0;
+        List<Path> files;
+        try (Stream<Path> list = Files.list(input)){
+            files = list.filter(p -> p.getFileName().toString().endsWith(direction.from)).sorted().toList();
+            Files.createDirectories(output);
+        } catch (IOException e){
+            return Helper.fail("An error occurred while trying to list the files of : \"%s\"%n", input);
+        }
+
+        var errors = Collections.synchronizedList(new ArrayList<String>());
+        var bytesRead = new AtomicLong();
+        var bytesWritten = new AtomicLong();
+        ExecutorService io = Executors.newFixedThreadPool(ioThreads);
+        ExecutorService cpu = Executors.newFixedThreadPool(cpuThreads);
+        // Enough files in flight to keep both pools busy, a file is only read once a slot is free
+        var inFlight = new Semaphore(ioThreads + cpuThreads);
+        var start = System.nanoTime();
+        try {
+            var tasks = new CompletableFuture<?>[files.size()];
+            for (int i = 0; i < tasks.length; ++i){
+                inFlight.acquireUninterruptibly();
+                var source = files.get(i);
+                var name = source.getFileName().toString();
+                var target = output.resolve(name.substring(0, name.length() - direction.from.length()) + direction.to);
+                tasks[i] = CompletableFuture.supplyAsync(() -> read(source), io)
+                        .thenApplyAsync(content -> {
+                            bytesRead.addAndGet(content.length);
+                            return convert(content, direction);
+                        }, cpu)
+                        .thenAcceptAsync(content -> {
+                            write(target, content);
+                            bytesWritten.addAndGet(content.length);
+                        }, io)
+                        .exceptionally(e -> {
+                            errors.add(name + " : " + (e.getCause() == null ? e : e.getCause()));
+                            return null;
+                        })
+                        .whenComplete((ignored, e) -> inFlight.release());
+            }
+            CompletableFuture.allOf(tasks).join();
+        } finally {
+            io.shutdown();
+            cpu.shutdown();
+        }
+        var nanos = System.nanoTime() - start;
+        return new Report(files.size() - errors.size(), List.copyOf(errors), bytesRead.get(), bytesWritten.get(), nanos);
+    }
+
+    /**
+     * Convert the content of a file
+     * @param content (byte[]) - Content of the "PNG" or "QOI" file
+     * @param direction (Direction) - Direction of the conversion
+     * @return (byte[]) - Content of the converted file
+     */
+    private static byte[] convert(byte[] content, Direction direction){
+        try {
+            return switch (direction){
+                case PNG_TO_QOI -> {
+                    var image = ImageIO.read(new ByteArrayInputStream(content));
+                    if (image == null) throw new IOException("Not a readable image");
+                    yield QOIEncoder.qoiFile(image);
+                }
+                case QOI_TO_PNG -> {
+                    assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+                    assert ArrayUtils.endsWith(content, QOISpecification.QOI_EOF);
+                    var header = QOIDecoder.decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+                    var pixels = QOIDecoder.decodeData(content, QOISpecification.HEADER_SIZE, content.length - QOISpecification.QOI_EOF.length,
+                            header[0], header[1], QOIBufferPool.borrowInts(header[0] * header[1]));
+                    var image = Helper.toBufferedImage(pixels, header[0], header[1], (byte) header[2]);
+                    QOIBufferPool.release(pixels);
+                    var output = new ByteArrayOutputStream();
+                    ImageIO.write(image, "png", output);
+                    yield output.toByteArray();
+                }
+            };
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] read(Path path){
+        try {
+            return Files.readAllBytes(path);
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void write(Path path, byte[] content){
+        try {
+            Files.write(path, content);
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Command line entry point
+     * @param args (String[]) - input directory, output directory and optionally the direction (png or qoi, the format of the input files)
+     */
+    public static void main(String[] args){
+        if (args.length < 2){
+            System.out.println("Usage : BatchConverter <input directory> <output directory> [png|qoi]");
+            return;
+        }
+        var direction = args.length > 2 && args[2].equalsIgnoreCase("qoi") ? Direction.QOI_TO_PNG : Direction.PNG_TO_QOI;
+        var report = convert(Path.of(args[0]), Path.of(args[1]), direction);
+        System.out.println(report);
+        report.errors().forEach(System.out::println);
+    }
+
+}
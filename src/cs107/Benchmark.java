@@ -0,0 +1,411 @@
+package cs107;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Micro benchmarks of the "Quite Ok Image" codec.
+ * Every benchmark is warmed up, then run in batches until the measurement time is over.
+ * For each benchmark the harness prints the time per operation, the throughput in megapixels per second
+ * (for the benchmarks working on images) and the number of bytes allocated per operation
+ * by the benchmark thread, which gives the allocation rate without a GC profiler.
+ * @apiNote Usage : Benchmark [filter] [number of images of tests/ to load]
+ * Only the benchmarks whose name contains the filter are run.
+ */
+public final class Benchmark {
+
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final long MEASURE_NANOS = 2_000_000_000L;
+    private static final long BATCH_NANOS = 10_000_000L;
+
+    /**
+     * Results of the benchmarks are stored here so that the JIT cannot remove them
+     */
+    @SuppressWarnings("unused")
+    private static volatile Object sink;
+
+    private static String filter = "";
+
+    // Hide default constructor
+    private Benchmark(){}
+
+    /**
+     * Main entry point of the benchmarks
+     * @param args (String[]) - Optional filter on the names and number of images of tests/ to load (32 by default)
+     */
+    public static void main(String[] args){
+        filter = args.length > 0 ? args[0] : "";
+        var limit = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        System.out.printf("%-48s %14s %10s %14s%n", "Benchmark", "ns/op", "MP/s", "B/op");
+        atomicOperations();
+        arrayUtils();
+        helper();
+        probe();
+        corpus("references", listImages("references", Integer.MAX_VALUE));
+        var tests = listImages("tests", limit);
+        corpus("tests", tests);
+        containers("tests", tests);
+        cache("tests", tests);
+        if (!tests.isEmpty()) sequence("tests", tests.get(0), 30);
+    }
+
+    // ==================================================================================
+    // ================================== BENCHMARKS ====================================
+    // ==================================================================================
+
+    private static void atomicOperations(){
+        byte[] pixel = {100, 0, 55, 73};
+        byte[] diff = {-2, -1, 0};
+        byte[] luma = {19, 27, 20};
+        byte[] input = {0, 0, 0, -2, 100, 0, 55, 8, 0, 0, 0};
+        byte[] lumaChunk = {(byte) 0b10_10_01_01, (byte) 0b11_00_11_01};
+        byte[][] buffer = new byte[64][4];
+        run("QOIEncoder.qoiOpRGB", 0, () -> QOIEncoder.qoiOpRGB(pixel));
+        run("QOIEncoder.qoiOpRGBA", 0, () -> QOIEncoder.qoiOpRGBA(pixel));
+        run("QOIEncoder.qoiOpIndex", 0, () -> QOIEncoder.qoiOpIndex((byte) 43));
+        run("QOIEncoder.qoiOpDiff", 0, () -> QOIEncoder.qoiOpDiff(diff));
+        run("QOIEncoder.qoiOpLuma", 0, () -> QOIEncoder.qoiOpLuma(luma));
+        run("QOIEncoder.qoiOpRun", 0, () -> QOIEncoder.qoiOpRun((byte) 41));
+        run("QOIDecoder.decodeQoiOpRGB", 0, () -> QOIDecoder.decodeQoiOpRGB(buffer, input, (byte) 34, 0, 3));
+        run("QOIDecoder.decodeQoiOpRGBA", 0, () -> QOIDecoder.decodeQoiOpRGBA(buffer, input, 0, 3));
+        run("QOIDecoder.decodeQoiOpDiff", 0, () -> QOIDecoder.decodeQoiOpDiff(pixel, (byte) 0b01_11_11_11));
+        run("QOIDecoder.decodeQoiOpLuma", 0, () -> QOIDecoder.decodeQoiOpLuma(pixel, lumaChunk));
+        run("QOIDecoder.decodeQoiOpRun", 0, () -> QOIDecoder.decodeQoiOpRun(buffer, pixel, (byte) -61, 1));
+        run("QOISpecification.hash", 0, () -> QOISpecification.hash(pixel));
+    }
+
+    private static void arrayUtils(){
+        var image = Helper.readImage("references/dice.png").data();
+        var pixels = (long) image.length * image[0].length;
+        var channels = ArrayUtils.imageToChannels(image);
+        var bytes = ArrayUtils.concat(channels);
+        byte[] a = {0, 15, (byte) 255, 3};
+        byte[] b = {0, 14, (byte) 254, 2};
+        run("ArrayUtils.imageToChannels", pixels, () -> ArrayUtils.imageToChannels(image));
+        run("ArrayUtils.channelsToImage", pixels, () -> ArrayUtils.channelsToImage(channels, image.length, image[0].length));
+        run("ArrayUtils.ARGBtoRGBA", pixels, () -> ArrayUtils.ARGBtoRGBA(channels));
+        run("ArrayUtils.RGBAtoARGB", pixels, () -> ArrayUtils.RGBAtoARGB(channels));
+        run("ArrayUtils.concat", pixels, () -> ArrayUtils.concat(channels));
+        run("ArrayUtils.extract", 0, () -> ArrayUtils.extract(bytes, 1024, 4096));
+        run("ArrayUtils.partition", 0, () -> ArrayUtils.partition(a, 1, 1, 1, 1));
+        run("ArrayUtils.calculateDelta", 0, () -> ArrayUtils.calculateDelta(a, b));
+        run("ArrayUtils.toInt", 0, () -> ArrayUtils.toInt(a));
+        run("ArrayUtils.fromInt", 0, () -> ArrayUtils.fromInt(12345678));
+    }
+
+    private static void helper(){
+        BufferedImage io;
+        try {
+            io = ImageIO.read(new File("references/beach.png"));
+        } catch (IOException e){
+            Helper.fail("An error occurred while trying to read from : \"%s\"%n", "references/beach.png");
+            return;
+        }
+        var pixels = (long) io.getWidth() * io.getHeight();
+        run("Helper.fromBufferedImage", pixels, () -> Helper.fromBufferedImage(io));
+        var image = Helper.fromBufferedImage(io);
+        run("Helper.toBufferedImage", pixels, () -> Helper.toBufferedImage(image));
+        run("QOIEncoder.qoiFilePacked(Helper.fromBufferedImage)", pixels, () -> QOIEncoder.qoiFilePacked(Helper.fromBufferedImage(io)));
+        run("QOIEncoder.qoiFile(BufferedImage)", pixels, () -> QOIEncoder.qoiFile(io));
+        // A copy of the image with its own arrays, as when the same image is read twice
+        var copy = Helper.fromBufferedImage(io);
+        run("Arrays.deepHashCode(Helper.Image::data)", pixels, () -> Arrays.deepHashCode(image.data()));
+        run("PixelHash.hash64", pixels, () -> PixelHash.hash64(copy.data(), copy.channels(), copy.color_space(), 0));
+        run("Helper.Image.hashCode(cached)", pixels, copy::hashCode);
+        run("Arrays.deepEquals(Helper.Image::data)", pixels, () -> Arrays.deepEquals(image.data(), copy.data()));
+        run("Helper.Image.equals", pixels, () -> image.equals(copy));
+        var set = new java.util.HashSet<Helper.Image>(List.of(image));
+        run("HashSet<Helper.Image>.contains", pixels, () -> set.contains(copy));
+    }
+
+    private static void probe(){
+        var files = new File("references").listFiles((d, name) -> name.endsWith(".qoi"));
+        if (files == null) return;
+        var paths = Arrays.stream(files).map(File::toPath).toList();
+        run("Helper.read + QOIDecoder.decodeHeader", 0, () -> forEach(paths, path ->
+                QOIDecoder.decodeHeader(ArrayUtils.extract(Helper.read(path.toString()), 0, QOISpecification.HEADER_SIZE))));
+        run("QOIProbe.probe", 0, () -> forEach(paths, path -> {
+            try {
+                return QOIProbe.probe(path);
+            } catch (IOException e){
+                throw new java.io.UncheckedIOException(e);
+            }
+        }));
+        run("QOIProbe.probeDirectory", 0, () -> {
+            try {
+                return QOIProbe.probeDirectory(Path.of("references"));
+            } catch (IOException e){
+                throw new java.io.UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static void corpus(String name, List<Helper.Image> images){
+        var pixels = 0L;
+        var encoded = new ArrayList<byte[]>();
+        for (Helper.Image image : images){
+            pixels += (long) image.data().length * image.data()[0].length;
+            encoded.add(QOIEncoder.qoiFilePacked(image));
+        }
+        run(name + " QOIEncoder.qoiFile", pixels, () -> forEach(images, QOIEncoder::qoiFile));
+        run(name + " QOIEncoder.qoiFilePacked", pixels, () -> forEach(images, QOIEncoder::qoiFilePacked));
+        var direct = java.nio.ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE - 8,
+                5 * maxPixels(images) + QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length));
+        run(name + " QOIEncoder.encodeInto(direct)", pixels, () -> forEach(images, image -> QOIEncoder.encodeInto(image, direct.clear())));
+        run(name + " QOIParallelEncoder.qoiFile", pixels, () -> forEach(images, QOIParallelEncoder::qoiFile));
+        run(name + " QOIDecoder.decodeQoiFile", pixels, () -> forEach(encoded, QOIDecoder::decodeQoiFile));
+        run(name + " QOIDecoder.decodeQoiFilePacked", pixels, () -> forEach(encoded, QOIDecoder::decodeQoiFilePacked));
+        run(name + " QOIBufferPool round trip", pixels, () -> forEach(encoded, content -> roundTrip(content, direct)));
+        run(name + " QOIDecoder.decodeRegion(top 1/8)", pixels / 8, () -> forEach(encoded, content -> {
+            var header = QOIDecoder.decodeHeader(java.nio.ByteBuffer.wrap(content));
+            return QOIDecoder.decodeRegion(content, 0, 0, header[0], Math.max(1, header[1] / 8));
+        }));
+        run(name + " QOIDecoder.decodeRegion(bottom 1/8)", pixels / 8, () -> forEach(encoded, content -> {
+            var header = QOIDecoder.decodeHeader(java.nio.ByteBuffer.wrap(content));
+            return QOIDecoder.decodeRegion(content, 0, header[1] - Math.max(1, header[1] / 8), header[0], Math.max(1, header[1] / 8));
+        }));
+        run(name + " QOIDecoder.decodeThumbnail(1/8)", pixels, () -> forEach(encoded, content -> {
+            var header = QOIDecoder.decodeHeader(java.nio.ByteBuffer.wrap(content));
+            return QOIDecoder.decodeThumbnail(content, Math.max(1, header[0] / 8), Math.max(1, header[1] / 8));
+        }));
+        run(name + " decodeQoiFilePacked + scale(1/8)", pixels, () -> forEach(encoded, content -> scale(QOIDecoder.decodeQoiFilePacked(content), 8)));
+        var checkpointed = new ArrayList<QOICheckpoints.Encoded>();
+        var edited = new ArrayList<Helper.Image>();
+        for (Helper.Image image : images){
+            checkpointed.add(QOICheckpoints.qoiFile(image, 16));
+            edited.add(edit(image));
+        }
+        run(name + " QOICheckpoints.qoiFile(edited)", pixels, () -> forEach(edited, image -> QOICheckpoints.qoiFile(image, 16)));
+        run(name + " QOICheckpoints.reencode(edited)", pixels, () -> {
+            Object last = null;
+            for (int i = 0; i < edited.size(); ++i){
+                var height = edited.get(i).data().length;
+                last = QOICheckpoints.reencode(checkpointed.get(i), edited.get(i), height * 7 / 8, height * 7 / 8 + 1);
+            }
+            return last;
+        });
+    }
+
+    /**
+     * Compare the size and the speed of the plain files, the compressed files (See QOIZFile) and PNG
+     */
+    private static void containers(String name, List<Helper.Image> images){
+        name += " containers";
+        if (!name.contains(filter)) return;
+        var pixels = 0L;
+        var qoi = new ArrayList<byte[]>();
+        var qoiz = new ArrayList<byte[]>();
+        var png = new ArrayList<byte[]>();
+        for (Helper.Image image : images){
+            pixels += (long) image.data().length * image.data()[0].length;
+            qoi.add(QOIEncoder.qoiFilePacked(image));
+            qoiz.add(QOIZFile.qoizFile(image));
+            png.add(png(image));
+        }
+        System.out.printf("%s sizes : QOI %d B, QOIZ %d B (%.1f %% of QOI), PNG (ImageIO) %d B (%.1f %% of QOI)%n", name,
+                total(qoi), total(qoiz), 100.0 * total(qoiz) / total(qoi), total(png), 100.0 * total(png) / total(qoi));
+        run(name + " QOIZFile.qoizFile", pixels, () -> forEach(images, QOIZFile::qoizFile));
+        run(name + " QOIZFile.decodeQoizFile", pixels, () -> forEach(qoiz, QOIZFile::decodeQoizFile));
+        run(name + " ImageIO.write(png)", pixels, () -> forEach(images, Benchmark::png));
+        run(name + " ImageIO.read(png)", pixels, () -> forEach(png, content -> {
+            try {
+                return ImageIO.read(new java.io.ByteArrayInputStream(content));
+            } catch (IOException e){
+                throw new java.io.UncheckedIOException(e);
+            }
+        }));
+    }
+
+    /**
+     * Compare the encoder with a cache holding the files of all the images (See QOIEncodeCache)
+     */
+    private static void cache(String name, List<Helper.Image> images){
+        name += " cache";
+        if (!name.contains(filter)) return;
+        var pixels = 0L;
+        for (Helper.Image image : images) pixels += (long) image.data().length * image.data()[0].length;
+        var cache = new QOIEncodeCache(Long.MAX_VALUE);
+        forEach(images, cache::qoiFile);
+        run(name + " QOIEncoder.qoiFilePacked", pixels, () -> forEach(images, QOIEncoder::qoiFilePacked));
+        run(name + " QOIEncodeCache.digest", pixels, () -> forEach(images, QOIEncodeCache::digest));
+        run(name + " QOIEncodeCache.qoiFile(hit)", pixels, () -> forEach(images, cache::qoiFile));
+    }
+
+    /**
+     * Compare a sequence (See QOISequence) with one file per frame, on near-static footage :
+     * tests/ holds unrelated pictures of different sizes, the frames move a small square over one picture
+     */
+    private static void sequence(String name, Helper.Image background, int count){
+        name += " sequence";
+        if (!name.contains(filter)) return;
+        var height = background.data().length;
+        var width = background.data()[0].length;
+        var frames = new ArrayList<Helper.Image>();
+        for (int n = 0; n < count; ++n){
+            var data = new int[height][];
+            for (int y = 0; y < height; ++y) data[y] = background.data()[y].clone();
+            var side = Math.min(32, Math.min(width, height));
+            var left = (n * 8) % (width - side + 1);
+            var top = (n * 4) % (height - side + 1);
+            for (int y = top; y < top + side; ++y){
+                for (int x = left; x < left + side; ++x) data[y][x] = ~data[y][x] | 0xFF000000;
+            }
+            frames.add(Helper.generateImage(data, background.channels(), background.color_space()));
+        }
+        var pixels = (long) count * width * height;
+        var files = new ArrayList<byte[]>();
+        for (Helper.Image frame : frames) files.add(QOIEncoder.qoiFilePacked(frame));
+        var sequence = QOISequence.encode(frames);
+        System.out.printf("%s sizes (%d frames of %dx%d) : one file per frame %d B, sequence %d B (%.1f %%)%n", name, count,
+                width, height, total(files), sequence.length, 100.0 * sequence.length / total(files));
+        run(name + " QOIEncoder.qoiFilePacked", pixels, () -> forEach(frames, QOIEncoder::qoiFilePacked));
+        run(name + " QOISequence.encode", pixels, () -> QOISequence.encode(frames));
+        run(name + " QOIDecoder.decodeQoiFilePacked", pixels, () -> forEach(files, QOIDecoder::decodeQoiFilePacked));
+        run(name + " QOISequence.forEachFrame", pixels, () -> {
+            QOISequence.read(sequence).forEachFrame((n, frame) -> sink = frame);
+            return sequence;
+        });
+        run(name + " QOISequence.frame(last)", (long) width * height, () -> QOISequence.read(sequence).frame(count - 1));
+    }
+
+    private static byte[] png(Helper.Image image){
+        var output = new java.io.ByteArrayOutputStream();
+        try {
+            ImageIO.write(Helper.toBufferedImage(image), "png", output);
+        } catch (IOException e){
+            throw new java.io.UncheckedIOException(e);
+        }
+        return output.toByteArray();
+    }
+
+    private static long total(List<byte[]> files){
+        var total = 0L;
+        for (byte[] file : files) total += file.length;
+        return total;
+    }
+
+    // ==================================================================================
+    // ==================================== HARNESS =====================================
+    // ==================================================================================
+
+    /**
+     * Run a benchmark and print its results
+     * @param name (String) - Name of the benchmark
+     * @param pixels (long) - Number of pixels processed by one operation, 0 if it does not apply
+     * @param operation (Supplier) - The operation to measure
+     */
+    private static void run(String name, long pixels, Supplier<?> operation){
+        if (!name.contains(filter)) return;
+        // Warm up, and find a batch size long enough to make the cost of System.nanoTime negligible
+        var batch = 1L;
+        var warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd){
+            var start = System.nanoTime();
+            for (long i = 0; i < batch; ++i) sink = operation.get();
+            if (System.nanoTime() - start < BATCH_NANOS) batch *= 2;
+        }
+        var operations = 0L;
+        var allocated = allocatedBytes();
+        var start = System.nanoTime();
+        long elapsed;
+        do {
+            for (long i = 0; i < batch; ++i) sink = operation.get();
+            operations += batch;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+        allocated = allocatedBytes() - allocated;
+        var nanosPerOperation = (double) elapsed / operations;
+        System.out.printf("%-48s %14.1f %10s %14d%n", name, nanosPerOperation,
+                pixels == 0 ? "-" : String.format("%.1f", pixels * 1e3 / nanosPerOperation), allocated / operations);
+    }
+
+    /**
+     * @return (long) - Number of bytes allocated by the current thread since it started
+     */
+    private static long allocatedBytes(){
+        var bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static <T> Object forEach(List<T> inputs, java.util.function.Function<T, ?> operation){
+        Object last = null;
+        for (T input : inputs) last = operation.apply(input);
+        return last;
+    }
+
+    /**
+     * Decode a file and encode it again in a direct buffer, the scratch arrays coming from QOIBufferPool :
+     * the loop of a long-running converter. Nothing should be allocated once the pool is warm
+     * @param content (byte[]) - Content of the file
+     * @param output (ByteBuffer) - Buffer where to encode the file
+     * @return (int) - Size of the encoded file
+     */
+    private static int roundTrip(byte[] content, java.nio.ByteBuffer output){
+        var header = QOIDecoder.decodeHeader(java.nio.ByteBuffer.wrap(content));
+        var pixels = QOIDecoder.decodeData(content, QOISpecification.HEADER_SIZE, content.length - QOISpecification.QOI_EOF.length,
+                header[0], header[1], QOIBufferPool.borrowInts(header[0] * header[1]));
+        var size = QOIEncoder.encodeInto(pixels, header[0], header[1], (byte) header[2], (byte) header[3], output.clear());
+        QOIBufferPool.release(pixels);
+        return size;
+    }
+
+    /**
+     * Downscale a decoded image with Java2D, the way thumbnails were made before QOIDecoder::decodeThumbnail
+     * @param image (Helper.Image) - Image to downscale
+     * @param factor (int) - Ratio between the size of the image and the size of the thumbnail
+     * @return (BufferedImage) - The thumbnail
+     */
+    private static BufferedImage scale(Helper.Image image, int factor){
+        var source = Helper.toBufferedImage(image);
+        var width = Math.max(1, source.getWidth() / factor);
+        var height = Math.max(1, source.getHeight() / factor);
+        var thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        var graphics = thumbnail.createGraphics();
+        graphics.drawImage(source.getScaledInstance(width, height, java.awt.Image.SCALE_AREA_AVERAGING), 0, 0, null);
+        graphics.dispose();
+        return thumbnail;
+    }
+
+    /**
+     * @return (Helper.Image) - Copy of the image where the row at 7/8 of the height is inverted, as if it was edited
+     */
+    private static Helper.Image edit(Helper.Image image){
+        var data = new int[image.data().length][];
+        for (int y = 0; y < data.length; ++y) data[y] = image.data()[y].clone();
+        var row = data[data.length * 7 / 8];
+        for (int x = 0; x < row.length; ++x) row[x] ^= 0x00_FF_FF_FF;
+        return Helper.generateImage(data, image.channels(), image.color_space());
+    }
+
+    private static long maxPixels(List<Helper.Image> images){
+        var max = 0L;
+        for (Helper.Image image : images) max = Math.max(max, (long) image.data().length * image.data()[0].length);
+        return max;
+    }
+
+    /**
+     * Read the png images of a folder, sorted by name
+     * @param folder (String) - Folder containing the images
+     * @param limit (int) - Maximum number of images to read
+     * @return (List of Helper.Image) - The images
+     */
+    private static List<Helper.Image> listImages(String folder, int limit){
+        var files = new File(folder).listFiles((d, name) -> name.endsWith(".png"));
+        if (files == null) return List.of();
+        Arrays.sort(files);
+        var images = new ArrayList<Helper.Image>();
+        for (int i = 0; i < Math.min(limit, files.length); ++i){
+            images.add(Helper.readImage(files[i].getPath()));
+        }
+        return images;
+    }
+
+}
@@ -2,6 +2,10 @@ package cs107;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -41,23 +45,95 @@ public final class Helper {
     private Helper(){}
 
     /**
-     * Record to store all the information of a given image
-     * @param data (int[][]) - ARGB stored pixels
-     * @param channels (byte) - number of channels
-     * @param color_space (byte) - color space
+     * Class to store all the information of a given image.
+     * The hash of the pixels is computed the first time it is needed and kept with the image
+     * @apiNote The pixels must not be modified once the image is hashed (as a key of a map, for instance)
      */
-    public record Image(int[][] data, byte channels, byte color_space){
+    public static final class Image {
+
+        /**
+         * Seed of PixelHash for hash64
+         */
+        private static final long HASH_SEED = 0;
+
+        private final int[][] data;
+        private final byte channels;
+        private final byte color_space;
+        /** Hash of the content, valid when hashed is true */
+        private long hash;
+        private volatile boolean hashed;
+
+        /**
+         * @param data (int[][]) - ARGB stored pixels
+         * @param channels (byte) - number of channels
+         * @param color_space (byte) - color space
+         */
+        public Image(int[][] data, byte channels, byte color_space){
+            this.data = data;
+            this.channels = channels;
+            this.color_space = color_space;
+        }
+
+        /**
+         * @return (int[][]) - ARGB stored pixels
+         */
+        public int[][] data(){
+            return data;
+        }
+
+        /**
+         * @return (byte) - number of channels
+         */
+        public byte channels(){
+            return channels;
+        }
+
+        /**
+         * @return (byte) - color space
+         */
+        public byte color_space(){
+            return color_space;
+        }
+
+        /**
+         * 64 bits hash of the pixels, the size, the channels and the color space (See PixelHash::hash64),
+         * computed once
+         * @return (long) - The hash of the image
+         */
+        public long hash64(){
+            if (!hashed){
+                hash = PixelHash.hash64(data, channels, color_space, HASH_SEED);
+                hashed = true; // Publishes hash
+            }
+            return hash;
+        }
+
+        /**
+         * Two images are equal if they have the same pixels, channels and color space.
+         * When the hashes of both images are already computed, different hashes end the comparison
+         */
         @Override
         public boolean equals(Object obj) {
-            if (obj instanceof Image im){
-                return Arrays.deepEquals(data, im.data) && (channels == im.channels) && (color_space == im.color_space);
-            }else
-                return false;
+            if (obj == this) return true;
+            if (!(obj instanceof Image im)) return false;
+            if (channels != im.channels || color_space != im.color_space || data.length != im.data.length) return false;
+            if (hashed && im.hashed && hash != im.hash) return false;
+            for (int y = 0; y < data.length; ++y){
+                if (!Arrays.equals(data[y], im.data[y])) return false;
+            }
+            return true;
         }
 
         @Override
         public int hashCode() {
-            return Arrays.deepHashCode(data);
+            var hash = hash64();
+            return (int) (hash ^ hash >>> 32);
+        }
+
+        @Override
+        public String toString() {
+            return "Image[width=" + (data.length == 0 || data[0] == null ? 0 : data[0].length) + ", height=" + data.length
+                    + ", channels=" + channels + ", color_space=" + color_space + "]";
         }
     }
 
@@ -93,21 +169,95 @@ public final class Helper {
      */
     public static Image readImage(String path) {
         try{
-            var io = ImageIO.read(new File(path));
-            var width  = io.getWidth();
-            var height = io.getHeight();
-            var array = new int[height][width];
+            return fromBufferedImage(ImageIO.read(new File(path)));
+        }catch (IOException e){
+            return fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+
+    }
+
+    /**
+     * Convert an image decoded by ImageIO to an Image
+     * @param io (BufferedImage) - The image to convert
+     * @return (Image) - The corresponding Image
+     */
+    public static Image fromBufferedImage(BufferedImage io) {
+        var width  = io.getWidth();
+        var height = io.getHeight();
+        var array = new int[height][width];
+        if(canReadRaster(io)){
+            for(var x = 0; x < height; ++x){
+                readRaster(io, x, array[x]);
+            }
+        } else {
+            // Exotic color model, let the image convert its pixels
             for(var x = 0; x < height;++x){
                 for(var y = 0 ;y < width; ++y){
                     array[x][y] = io.getRGB(y, x);
                 }
             }
-            var nbrChannels = (byte) (io.getColorModel().hasAlpha() ? 4 : 3);
-            return new Image(array, nbrChannels, (byte) 0);
-        }catch (IOException e){
-            return fail("An error occurred while trying to read from : \"%s\"%n", path);
         }
+        var nbrChannels = (byte) (io.getColorModel().hasAlpha() ? 4 : 3);
+        return new Image(array, nbrChannels, (byte) 0);
+    }
+
+    /**
+     * Check if the pixels of an image can be copied straight from its DataBuffer with readRaster.
+     * Only the common types whose samples are already sRGB ARGB channels are supported
+     * (TYPE_INT_ARGB, TYPE_INT_RGB, TYPE_4BYTE_ABGR and TYPE_3BYTE_BGR)
+     * @param io (BufferedImage) - The image to read
+     * @return (boolean) - true if readRaster can read the image
+     */
+    static boolean canReadRaster(BufferedImage io) {
+        var raster = io.getRaster();
+        return switch (io.getType()){
+            case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB ->
+                    raster.getSampleModel() instanceof SinglePixelPackedSampleModel && raster.getDataBuffer() instanceof DataBufferInt;
+            case BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_3BYTE_BGR ->
+                    raster.getSampleModel() instanceof ComponentSampleModel && raster.getDataBuffer() instanceof DataBufferByte;
+            default -> false;
+        };
+    }
 
+    /**
+     * Copy a row of pixels of an image straight from its DataBuffer, the result is the same as getRGB.
+     * Used by fromBufferedImage and QOIEncoder::qoiFile(BufferedImage)
+     * @param io (BufferedImage) - The image to read, canReadRaster(io) must be true
+     * @param x (int) - Index of the row
+     * @param row (int[]) - Where to store the ARGB pixels, at least as long as the width of the image
+     * @throws AssertionError if the image cannot be read this way or the row is too short
+     */
+    static void readRaster(BufferedImage io, int x, int[] row) {
+        assert canReadRaster(io) && row.length >= io.getWidth();
+        var raster = io.getRaster();
+        var width = io.getWidth();
+        // Position of the image in its DataBuffer (not 0 for the sub images)
+        var translateX = -raster.getSampleModelTranslateX();
+        var translateY = -raster.getSampleModelTranslateY();
+        if(raster.getDataBuffer() instanceof DataBufferInt buffer){
+            var packed = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            var data = buffer.getData();
+            var opaque = io.getType() == BufferedImage.TYPE_INT_RGB ? 0xFF_00_00_00 : 0;
+            var start = buffer.getOffset() + (x + translateY) * packed.getScanlineStride() + translateX;
+            for(var y = 0; y < width; ++y){
+                row[y] = data[start + y] | opaque;
+            }
+        } else {
+            var component = (ComponentSampleModel) raster.getSampleModel();
+            var buffer = (DataBufferByte) raster.getDataBuffer();
+            var data = buffer.getData();
+            var offsets = component.getBandOffsets(); // Bands are in the R, G, B (, A) order
+            var stride = component.getPixelStride();
+            var hasAlpha = offsets.length == 4;
+            var position = buffer.getOffset() + (x + translateY) * component.getScanlineStride() + translateX * stride;
+            for(var y = 0; y < width; ++y, position += stride){
+                var alpha = hasAlpha ? data[position + offsets[3]] & 0xFF : 0xFF;
+                row[y] = alpha << 24
+                        | (data[position + offsets[0]] & 0xFF) << 16
+                        | (data[position + offsets[1]] & 0xFF) << 8
+                        | (data[position + offsets[2]] & 0xFF);
+            }
+        }
     }
 
     /**
@@ -116,17 +266,7 @@ public final class Helper {
      * @param image (Image) - Image to store
      */
     public static void writeImage(String path, Image image) {
-        int type = switch (image.channels){
-            case 3 -> BufferedImage.TYPE_3BYTE_BGR;
-            case 4 -> BufferedImage.TYPE_4BYTE_ABGR;
-            default -> fail("Cannot write this image, image.channels() == %d", image.channels);
-        };
-        var buffer = new BufferedImage(image.data[0].length, image.data.length, type);
-        for(var x = 0; x < buffer.getHeight(); ++x){
-            for(var y = 0 ; y < buffer.getWidth(); ++y){
-                buffer.setRGB(y, x, image.data[x][y]);
-            }
-        }
+        var buffer = toBufferedImage(image);
         var abs_path = res_folder + File.separator + path;
         try {
             ImageIO.write(buffer, "png", new File(abs_path));
@@ -135,6 +275,72 @@ public final class Helper {
         }
     }
 
+    /**
+     * Convert an Image to an image which can be written by ImageIO
+     * @param image (Image) - The image to convert
+     * @return (BufferedImage) - TYPE_3BYTE_BGR or TYPE_4BYTE_ABGR image, depending on the number of channels
+     */
+    public static BufferedImage toBufferedImage(Image image) {
+        var buffer = createBufferedImage(image.data[0].length, image.data.length, image.channels);
+        for(var x = 0; x < buffer.getHeight(); ++x){
+            writeRaster(buffer, x, image.data[x], 0);
+        }
+        return buffer;
+    }
+
+    /**
+     * Convert decoded pixels to an image which can be written by ImageIO
+     * @param pixels (int[]) - ARGB stored pixels, the pixel (x, y) is stored at y * width + x
+     * (See QOIDecoder::decodeData(byte[], int, int, int, int, int[]))
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels
+     * @return (BufferedImage) - TYPE_3BYTE_BGR or TYPE_4BYTE_ABGR image, depending on the number of channels
+     */
+    public static BufferedImage toBufferedImage(int[] pixels, int width, int height, byte channels) {
+        assert pixels != null && width > 0 && height > 0 && pixels.length >= (long) width * height;
+        var buffer = createBufferedImage(width, height, channels);
+        for(var x = 0; x < height; ++x){
+            writeRaster(buffer, x, pixels, x * width);
+        }
+        return buffer;
+    }
+
+    private static BufferedImage createBufferedImage(int width, int height, byte channels) {
+        int type = switch (channels){
+            case 3 -> BufferedImage.TYPE_3BYTE_BGR;
+            case 4 -> BufferedImage.TYPE_4BYTE_ABGR;
+            default -> fail("Cannot write this image, image.channels() == %d", channels);
+        };
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Write a row of ARGB pixels straight in the DataBuffer of an image created by createBufferedImage.
+     * The result is the same as setRGB : the alpha channel is dropped by TYPE_3BYTE_BGR
+     * @param io (BufferedImage) - The image to fill
+     * @param x (int) - Index of the row
+     * @param pixels (int[]) - ARGB stored pixels
+     * @param offset (int) - Index in pixels of the first pixel of the row
+     */
+    private static void writeRaster(BufferedImage io, int x, int[] pixels, int offset) {
+        var raster = io.getRaster();
+        var component = (ComponentSampleModel) raster.getSampleModel();
+        var buffer = (DataBufferByte) raster.getDataBuffer();
+        var data = buffer.getData();
+        var offsets = component.getBandOffsets(); // Bands are in the R, G, B (, A) order
+        var stride = component.getPixelStride();
+        var hasAlpha = offsets.length == 4;
+        var position = buffer.getOffset() + x * component.getScanlineStride();
+        for(var y = 0; y < io.getWidth(); ++y, position += stride){
+            var pixel = pixels[offset + y];
+            data[position + offsets[0]] = (byte) (pixel >> 16);
+            data[position + offsets[1]] = (byte) (pixel >> 8);
+            data[position + offsets[2]] = (byte) pixel;
+            if(hasAlpha) data[position + offsets[3]] = (byte) (pixel >>> 24);
+        }
+    }
+
     // ==================================================================================
     // ======================== BINARY FILE MANIPULATION METHODS ========================
     // ==================================================================================
@@ -2,10 +2,18 @@ package cs107;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Main entry point of the program.
@@ -68,6 +76,16 @@ public final class Main {
         assert testQoiOpRun();
         assert testEncodeData();
         assert testEncodeImage(pictures); //For (String picture: pictures) This will encode  references/picture.png to res/picture.qoi and compare the result with the reference (references/picture.qoi)
+        assert testQoiFilePacked(pictures); // Same as above with the packed encoder, without writing the files
+        assert testQOIOutputStream(pictures); // Same as above with the streaming encoder, row by row
+        assert testEncodeInto(pictures); // Same as above in heap and direct ByteBuffers
+        assert testBufferPool(pictures); // The pooled scratch arrays are reused and do not change the files
+        assert testQoiFileParallel(pictures); // Same as above with the parallel encoder, using small strips
+        assert testQoiFileBufferedImage(pictures); // Same as above, encoding straight from the BufferedImage read by ImageIO
+        assert testReadRaster(pictures); // The pixels read from the raster of each type of BufferedImage, and of sub images, are the ones of getRGB
+        assert testBatchConverter(pictures); // Same as above with the batch converter, the files are written in a temporary folder
+        assert testEncodeCache(pictures); // Same as above through a small cache spilling in a temporary folder, twice per picture
+        assert testImageHash(pictures); // Images with the same content are equal and have the same hash, whatever their arrays
         // ========== Test QOIDecoder ==========
         assert testDecodeHeader();
         assert testDecodeQoiOpRGB();
@@ -77,6 +95,18 @@ public final class Main {
         assert testDecodeQoiOpRun();
         assert testDecodeData();
         assert testDecodeImage(pictures); // For (String picture : pictures) This will decode references/picture.qoi to res/picture.png and compare the result with the reference (references/picture.png)
+        assert testDecodeDataPacked();
+        assert testDecodeQoiFilePacked(pictures); // Same as above with the packed decoder, the pixels are compared with the reference instead of the png file
+        assert testQOIInputStream(pictures); // Same as above with the streaming decoder, row by row
+        assert testDecodeFile(pictures); // Same as above, reading the files from the disk by windows
+        assert testSeekIndex(pictures); // Encode with seek points and decode the segments in parallel
+        assert testOffHeapImage(pictures); // Decode and encode the pictures through off-heap images split in small chunks
+        assert testQOIProbe(pictures); // Read the headers of the reference files without reading the files
+        assert testDecodeRegion(pictures); // Decode rectangles of the pictures, with and without seek points
+        assert testDecodeThumbnail(pictures); // Decode the pictures straight to a quarter of their size
+        assert testQOIZFile(pictures); // Compress the chunks of the pictures and decode them back
+        assert testCheckpoints(pictures); // Edit some rows of the pictures and encode only the changed part again
+        assert testSequence(pictures); // Encode frames moving a square over the pictures, each frame against the previous one
 
         // ========== Test QOI ENCODER AND DECODER ==========
         assert testEncodeDecodeTests(); // This will encode tests/*.png to tests/generated/*.qoi and decode them to tests/generated/*.png and compare the result with the reference (tests/*.png)
@@ -112,7 +142,7 @@ public final class Main {
         // Read in binary mode the file 'input_file'
         var inputFileContent = Helper.read(inputFile);
         // Decode the file using the 'QOI' decoder
-        var computedImage = QOIDecoder.decodeQoiFile(inputFileContent);
+        var computedImage = QOIDecoder.decodeQoiFilePacked(inputFileContent);
         // Write an image to 'output_file'
         Helper.writeImage(outputFile, computedImage);
     }
@@ -370,6 +400,324 @@ public final class Main {
         return Arrays.deepEquals(expected, QOIDecoder.decodeData(encoding, 4, 2));
     }
 
+    @SuppressWarnings("unused")
+    private static boolean testDecodeDataPacked(){
+        byte[] encoding = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        int[] expected = {0xFF000000, 0xFF000000, 0xFF000000, 0xFF00FF00, 0xFFEEECEE, 0xFF000000, 0xFF646464, 0x5A5A5A5A};
+        int[] buffer = new int[8];
+        return QOIDecoder.decodeData(encoding, 0, encoding.length, 4, 2, buffer) == buffer && Arrays.equals(expected, buffer);
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be encoded in QOI format (ref folder = references/)
+     * This method will encode the pictures row by row with a QOIOutputStream and compare the result with the reference file.
+     * @return true if the encoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testQOIOutputStream(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var image = Helper.readImage("references/" + picture + ".png");
+            var output = new ByteArrayOutputStream();
+            try (var stream = new QOIOutputStream(output, image.data()[0].length, image.data().length, image.channels(), image.color_space())) {
+                for (int[] row : image.data()) {
+                    stream.writeRow(row);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            if (!Arrays.equals(Helper.read("references/" + picture + ".qoi"), output.toByteArray())) {
+                check = false;
+                System.out.println("The streamed encoding of the picture " + picture + " is not correct.");
+            }
+        }
+        // A pending QOI_OP_RUN and a QOI_OP_RGBA (6 bytes) written at each position around the end of the 64 KiB buffer :
+        // 13103 QOI_OP_RGBA (alternating alpha) after the header end at byte 65529, then 0 to 5 QOI_OP_DIFF
+        for (int shift = 0; shift <= 5; ++shift) {
+            int[] row = new int[13103 + shift + 4];
+            int x = 0;
+            for (; x < 13103; ++x) row[x] = (x % 2 == 0 ? 0x10_00_00_00 : 0x20_00_00_00) | x;
+            for (; x < 13103 + shift; ++x) row[x] = row[x - 1] + 1;
+            row[x] = row[x - 1]; // QOI_OP_RUN
+            row[x + 1] = row[x] ^ 0x30_00_00_00; // QOI_OP_RGBA
+            row[x + 2] = 0;
+            row[x + 3] = 0;
+            var image = Helper.generateImage(new int[][]{row}, QOISpecification.RGBA, QOISpecification.sRGB);
+            // The pooled buffer has exactly the size of the buffer of the stream
+            QOIBufferPool.clear();
+            var output = new ByteArrayOutputStream();
+            try (var stream = new QOIOutputStream(output, row.length, 1, image.channels(), image.color_space())) {
+                stream.writeRow(row);
+            } catch (IOException e) {
+                return false;
+            }
+            if (!Arrays.equals(QOIEncoder.qoiFilePacked(image), output.toByteArray())) {
+                check = false;
+                System.out.println("The streamed encoding is not correct at the end of the buffer (shift " + shift + ").");
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be decoded (ref folder = references/)
+     * This method will decode the pictures with QOIDecoder::decodeQoiFilePacked and compare the result with the reference image.
+     * @return true if the decoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testDecodeQoiFilePacked(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            if (!Helper.readImage("references/" + picture + ".png").equals(QOIDecoder.decodeQoiFilePacked(Helper.read("references/" + picture + ".qoi")))) {
+                check = false;
+                System.out.println("The packed decoding of the picture " + picture + " is not correct.");
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be encoded in QOI format (ref folder = references/)
+     * This method will encode the pictures with the parallel encoder and compare the result with the reference file.
+     * The strips are kept small so that every picture is cut in many strips.
+     * @return true if the encoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testQoiFileParallel(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var image = Helper.readImage("references/" + picture + ".png");
+            if (!Arrays.equals(Helper.read("references/" + picture + ".qoi"), QOIParallelEncoder.qoiFile(image, ForkJoinPool.commonPool(), 64))) {
+                check = false;
+                System.out.println("The parallel encoding of the picture " + picture + " is not correct.");
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be encoded in QOI format (ref folder = references/)
+     * This method will encode the BufferedImage of the pictures and compare the result with the reference file.
+     * @return true if the encoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testQoiFileBufferedImage(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            try {
+                var image = ImageIO.read(new File("references/" + picture + ".png"));
+                if (!Arrays.equals(Helper.read("references/" + picture + ".qoi"), QOIEncoder.qoiFile(image))) {
+                    check = false;
+                    System.out.println("The encoding of the BufferedImage of the picture " + picture + " is not correct.");
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be read (ref folder = references/)
+     * This method will draw the pictures in BufferedImages of several types, and take a sub image of each of them,
+     * then compare the pixels of Helper.fromBufferedImage with getRGB and the file of QOIEncoder.qoiFile(BufferedImage)
+     * with the one of the converted image. The types which are not read from the raster are checked too.
+     * @return true if the pixels are the same, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testReadRaster(String[] pictures) {
+        int[] types = {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_4BYTE_ABGR,
+                BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_BYTE_GRAY};
+        boolean check = true;
+        for (String picture : pictures) {
+            BufferedImage reference;
+            try {
+                reference = ImageIO.read(new File("references/" + picture + ".png"));
+            } catch (IOException e) {
+                return false;
+            }
+            for (int type : types) {
+                var io = new BufferedImage(reference.getWidth(), reference.getHeight(), type);
+                var graphics = io.createGraphics();
+                graphics.drawImage(reference, 0, 0, null);
+                graphics.dispose();
+                var sub = io.getSubimage(io.getWidth() / 4, io.getHeight() / 3, io.getWidth() / 2, io.getHeight() / 2);
+                for (BufferedImage view : List.of(io, sub)) {
+                    var image = Helper.fromBufferedImage(view);
+                    var same = image.channels() == (view.getColorModel().hasAlpha() ? 4 : 3)
+                            && Arrays.equals(QOIEncoder.qoiFilePacked(image), QOIEncoder.qoiFile(view));
+                    for (int y = 0; same && y < view.getHeight(); ++y) {
+                        for (int x = 0; same && x < view.getWidth(); ++x) {
+                            same = image.data()[y][x] == view.getRGB(x, y);
+                        }
+                    }
+                    if (!same) {
+                        check = false;
+                        System.out.println("The pixels of the " + (view == sub ? "sub image of the " : "")
+                                + "BufferedImage of type " + type + " of the picture " + picture + " are not correct.");
+                    }
+                }
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be encoded in QOI format (ref folder = references/)
+     * This method will convert the references/ folder with the BatchConverter and compare the results with the reference files.
+     * @return true if the conversion is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testBatchConverter(String[] pictures) {
+        boolean check = true;
+        try {
+            var output = Files.createTempDirectory("qoi");
+            // One thread per pool : at most 2 files in flight
+            var report = BatchConverter.convert(Path.of("references"), output, BatchConverter.Direction.PNG_TO_QOI, 1, 1);
+            check = report.errors().isEmpty();
+            for (String picture : pictures) {
+                if (!Arrays.equals(Helper.read("references/" + picture + ".qoi"), Files.readAllBytes(output.resolve(picture + ".qoi")))) {
+                    check = false;
+                    System.out.println("The batch conversion of the picture " + picture + " is not correct.");
+                }
+            }
+            deleteDirectory(output);
+        } catch (IOException e) {
+            return false;
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be encoded (ref folder = references/)
+     * This method will encode the pictures twice through a cache too small to hold them all and compare the results with the references.
+     * @return true if the encoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testEncodeCache(String[] pictures) {
+        boolean check = true;
+        try {
+            var spill = Files.createTempDirectory("qoi");
+            var cache = new QOIEncodeCache(1 << 16, spill, 1L << 30);
+            for (int round = 0; round < 2; ++round) {
+                for (String picture : pictures) {
+                    // A new image each time, only its content is the same
+                    var image = Helper.readImage("references/" + picture + ".png");
+                    if (!Arrays.equals(Helper.read("references/" + picture + ".qoi"), cache.qoiFile(image))) {
+                        check = false;
+                        System.out.println("The cached encoding of the picture " + picture + " is not correct.");
+                    }
+                }
+            }
+            var stats = cache.stats();
+            if (stats.misses() != pictures.length || stats.hits() + stats.diskHits() != pictures.length || stats.bytes() > 1 << 16) {
+                check = false;
+                System.out.println("The counters of the cache are not correct : " + stats);
+            }
+            cache.clear();
+            deleteDirectory(spill);
+        } catch (IOException e) {
+            return false;
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be compared (ref folder = references/)
+     * This method will compare the pictures read twice, and the pictures with one changed pixel, and deduplicate them in a set.
+     * @return true if the comparison and the hashes are correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testImageHash(String[] pictures) {
+        boolean check = true;
+        var set = new java.util.HashSet<Helper.Image>();
+        for (String picture : pictures) {
+            var image = Helper.readImage("references/" + picture + ".png");
+            var again = QOIDecoder.decodeQoiFile(Helper.read("references/" + picture + ".qoi"));
+            int[][] data = new int[image.data().length][];
+            for (int y = 0; y < data.length; ++y) data[y] = image.data()[y].clone();
+            data[data.length - 1][data[0].length - 1] ^= 1;
+            var changed = Helper.generateImage(data, image.channels(), image.color_space());
+            // Compared before and after their hashes are computed
+            boolean before = image.equals(again) && !image.equals(changed);
+            if (!before || image.hashCode() != again.hashCode() || image.hash64() != QOIEncodeCache.digest(image).high()
+                    || image.hash64() == changed.hash64() || !image.equals(again) || image.equals(changed)) {
+                check = false;
+                System.out.println("The hash or the comparison of the picture " + picture + " is not correct.");
+            }
+            set.add(image);
+            set.add(again);
+            set.add(changed);
+        }
+        if (set.size() != 2 * pictures.length) {
+            check = false;
+            System.out.println("The set of the pictures holds " + set.size() + " images instead of " + 2 * pictures.length + ".");
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be decoded (ref folder = references/)
+     * This method will decode the pictures row by row with a QOIInputStream and compare the result with the reference image.
+     * @return true if the decoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testQOIInputStream(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var expected = Helper.readImage("references/" + picture + ".png");
+            try (var stream = new QOIInputStream(new FileInputStream("references/" + picture + ".qoi"))) {
+                var rows = new int[stream.height()][];
+                stream.forEachRow((y, row) -> rows[y] = row.clone());
+                if (!expected.equals(Helper.generateImage(rows, stream.channels(), stream.colorSpace()))) {
+                    check = false;
+                    System.out.println("The streamed decoding of the picture " + picture + " is not correct.");
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be decoded (ref folder = references/)
+     * This method will decode the pictures from the disk with QOIDecoder::decodeQoiFile(Path) and compare the result with the reference image.
+     * @return true if the decoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testDecodeFile(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            if (!Helper.readImage("references/" + picture + ".png").equals(QOIDecoder.decodeQoiFile(Path.of("references", picture + ".qoi")))) {
+                check = false;
+                System.out.println("The decoding from the disk of the picture " + picture + " is not correct.");
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be encoded in QOI format (ref folder = references/)
+     * This method will encode the pictures with seek points, compare the result with the reference file,
+     * then decode it in parallel from the serialized seek points and compare the result with the reference image.
+     * @return true if the encoding and the decoding are correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testSeekIndex(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var image = Helper.readImage("references/" + picture + ".png");
+            var encoded = QOISeekIndex.qoiFile(image, 1000);
+            var seekIndex = QOISeekIndex.fromBytes(encoded.index().toBytes());
+            if (!Arrays.equals(Helper.read("references/" + picture + ".qoi"), encoded.content())
+                    || !image.equals(QOIDecoder.decodeQoiFile(encoded.content(), seekIndex, ForkJoinPool.commonPool()))) {
+                check = false;
+                System.out.println("The seek index of the picture " + picture + " is not correct.");
+            }
+        }
+        return check;
+    }
 
     /**
      * @param pictures The array of the name of the pictures to be encoded in QOI format (ref folder = references/)
@@ -390,6 +738,398 @@ public final class Main {
         return check;
     }
 
+    /**
+     * @param pictures The array of the name of the pictures to be encoded in QOI format (ref folder = references/)
+     * This method will encode the pictures with QOIEncoder::qoiFilePacked and compare the result with the reference file.
+     * @return true if the encoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testQoiFilePacked(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            if (!Arrays.equals(Helper.read("references/" + picture + ".qoi"), QOIEncoder.qoiFilePacked(Helper.readImage("references/" + picture + ".png")))) {
+                check = false;
+                System.out.println("The packed encoding of the picture " + picture + " is not correct.");
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be encoded in QOI format (ref folder = references/)
+     * This method will encode the pictures with QOIEncoder::encodeInto in heap and direct buffers, from an offset,
+     * and compare the result with the reference file. A buffer too small for the file must overflow.
+     * @return true if the encoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testEncodeInto(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var expected = Helper.read("references/" + picture + ".qoi");
+            var image = Helper.readImage("references/" + picture + ".png");
+            var bound = QOIEncoder.maxEncodedSize(image.data()[0].length, image.data().length, image.channels());
+            for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate((int) bound + 3), ByteBuffer.allocateDirect((int) bound + 3)}) {
+                buffer.position(3);
+                var written = QOIEncoder.encodeInto(image, buffer);
+                var content = new byte[written];
+                buffer.flip().position(3);
+                buffer.get(content);
+                if (written != expected.length || !Arrays.equals(expected, content)) {
+                    check = false;
+                    System.out.println("The encoding of the picture " + picture + " in a " + (buffer.isDirect() ? "direct" : "heap") + " buffer is not correct.");
+                }
+            }
+            if (expected.length > bound) {
+                check = false;
+                System.out.println("The size bound of the picture " + picture + " is too small.");
+            }
+        }
+        // A buffer that is too small must overflow
+        try {
+            QOIEncoder.encodeInto(Helper.readImage("references/random.png"), ByteBuffer.allocate(1024));
+            check = false;
+            System.out.println("The encoding in a too small buffer did not fail.");
+        } catch (java.nio.BufferOverflowException ignored) {}
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be encoded in QOI format (ref folder = references/)
+     * This method will check that QOIBufferPool lends the arrays it holds within its limit, then decode and encode
+     * the pictures twice with dirty pooled arrays and compare the results with the reference files.
+     * @return true if the pool and the pooled encodings are correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testBufferPool(String[] pictures) {
+        boolean check = true;
+        QOIBufferPool.clear();
+        // Arrays given back are lent again, only if they are not too big
+        var bytes = QOIBufferPool.borrowBytes(1000);
+        var ints = QOIBufferPool.borrowInts(1000);
+        QOIBufferPool.release(bytes);
+        QOIBufferPool.release(ints);
+        if (QOIBufferPool.borrowBytes(600) != bytes || QOIBufferPool.borrowInts(900) != ints || QOIBufferPool.borrowInts(400).length != 400) {
+            check = false;
+            System.out.println("The pool does not lend the arrays it holds.");
+        }
+        // The pool keeps no more than its limit
+        var limit = QOIBufferPool.maxRetainedBytes();
+        QOIBufferPool.setMaxRetainedBytes(2000);
+        QOIBufferPool.release(new byte[1500]);
+        QOIBufferPool.release(new byte[1500]);
+        if (QOIBufferPool.retainedBytes() > 2000) {
+            check = false;
+            System.out.println("The pool keeps more than its limit.");
+        }
+        QOIBufferPool.setMaxRetainedBytes(limit);
+        QOIBufferPool.clear();
+        // Dirty arrays in the pool do not change the result
+        for (int round = 0; round < 2; ++round) {
+            for (String picture : pictures) {
+                var expected = Helper.read("references/" + picture + ".qoi");
+                var image = Helper.readImage("references/" + picture + ".png");
+                var width = image.data()[0].length;
+                var height = image.data().length;
+                var pixels = QOIDecoder.decodeData(expected, QOISpecification.HEADER_SIZE, expected.length - QOISpecification.QOI_EOF.length,
+                        width, height, QOIBufferPool.borrowInts(width * height));
+                var buffer = ByteBuffer.allocate((int) QOIEncoder.maxEncodedSize(width, height, image.channels()));
+                var written = QOIEncoder.encodeInto(pixels, width, height, image.channels(), image.color_space(), buffer);
+                QOIBufferPool.release(pixels);
+                if (!Arrays.equals(expected, QOIEncoder.qoiFilePacked(image)) || !Arrays.equals(expected, 0, expected.length, buffer.array(), 0, written)) {
+                    check = false;
+                    System.out.println("The pooled encoding of the picture " + picture + " is not correct.");
+                }
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be decoded (ref folder = references/)
+     * This method will decode rectangles of the pictures, with and without seek points, and compare them with the reference image.
+     * @return true if the decoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testDecodeRegion(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var image = Helper.readImage("references/" + picture + ".png");
+            var pixels = image.data();
+            var width = pixels[0].length;
+            var height = pixels.length;
+            var encoded = QOISeekIndex.qoiFile(image, 1000);
+            // Whole image, top rows, bottom right pixel and a centered rectangle
+            int[][] regions = {{0, 0, width, height}, {0, 0, width, (height + 3) / 4}, {width - 1, height - 1, 1, 1},
+                    {width / 4, height / 4, (width + 1) / 2, (height + 1) / 2}};
+            for (int[] region : regions) {
+                for (QOISeekIndex seekIndex : new QOISeekIndex[]{null, encoded.index()}) {
+                    var decoded = QOIDecoder.decodeRegion(encoded.content(), seekIndex, region[0], region[1], region[2], region[3]);
+                    boolean same = decoded.data().length == region[3] && decoded.channels() == image.channels();
+                    for (int y = 0; same && y < region[3]; ++y) {
+                        same = Arrays.equals(decoded.data()[y], 0, region[2], pixels[region[1] + y], region[0], region[0] + region[2]);
+                    }
+                    if (!same) {
+                        check = false;
+                        System.out.println("The region " + Arrays.toString(region) + " of the picture " + picture + " is not correct.");
+                    }
+                }
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be decoded (ref folder = references/)
+     * This method will decode the pictures to a quarter of their size and compare the result with the averages of the boxes of the full image.
+     * @return true if the decoding is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testDecodeThumbnail(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var content = Helper.read("references/" + picture + ".qoi");
+            var pixels = QOIDecoder.decodeQoiFile(content).data();
+            var width = (pixels[0].length + 3) / 4;
+            var height = (pixels.length + 3) / 4;
+            var thumbnail = QOIDecoder.decodeThumbnail(content, width, height).data();
+            // Average of each box, the colors weighted by the alpha channel
+            boolean same = thumbnail.length == height;
+            for (int ty = 0; same && ty < height; ++ty) {
+                for (int tx = 0; same && tx < width; ++tx) {
+                    long a = 0, r = 0, g = 0, b = 0, count = 0;
+                    for (int y = ty * pixels.length / height; y < (ty + 1) * pixels.length / height; ++y) {
+                        for (int x = tx * pixels[0].length / width; x < (tx + 1) * pixels[0].length / width; ++x) {
+                            int alpha = pixels[y][x] >>> 24;
+                            a += alpha;
+                            r += (pixels[y][x] >> 16 & 0xFF) * alpha;
+                            g += (pixels[y][x] >> 8 & 0xFF) * alpha;
+                            b += (pixels[y][x] & 0xFF) * alpha;
+                            ++count;
+                        }
+                    }
+                    int expected = a == 0 ? 0 : (int) ((a + count / 2) / count << 24 | (r + a / 2) / a << 16 | (g + a / 2) / a << 8 | (b + a / 2) / a);
+                    same = thumbnail[ty][tx] == expected;
+                }
+            }
+            if (!same) {
+                check = false;
+                System.out.println("The thumbnail of the picture " + picture + " is not correct.");
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be compressed (ref folder = references/)
+     * This method will compress the pictures with default and tiny blocks, decode them back and compare the result with the reference image.
+     * The plain files must be read too.
+     * @return true if the compression and the decoding are correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testQOIZFile(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var plain = Helper.read("references/" + picture + ".qoi");
+            var image = QOIDecoder.decodeQoiFile(plain);
+            // Default blocks, then tiny blocks so that chunks span two blocks
+            for (byte[] compressed : new byte[][]{QOIZFile.qoizFile(image), QOIZFile.qoizFile(image, 1000, 9)}) {
+                var decoded = QOIZFile.decode(compressed);
+                if (!QOIZFile.isQoiz(compressed) || !Arrays.deepEquals(image.data(), decoded.data())
+                        || image.channels() != decoded.channels() || image.color_space() != decoded.color_space()) {
+                    check = false;
+                    System.out.println("The compressed file of the picture " + picture + " is not correct.");
+                }
+            }
+            // Plain files are still read
+            if (QOIZFile.isQoiz(plain) || !Arrays.deepEquals(image.data(), QOIZFile.decode(plain).data())) {
+                check = false;
+                System.out.println("The plain file of the picture " + picture + " is not read by QOIZFile.decode.");
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be encoded in QOI format (ref folder = references/)
+     * This method will encode the pictures with checkpoints, edit a band of rows, encode only the changed part again
+     * and compare the result with a full encoding of the edited picture.
+     * @return true if the encodings are correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testCheckpoints(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var image = Helper.readImage("references/" + picture + ".png");
+            var encoded = QOICheckpoints.qoiFile(image, 8);
+            if (!Arrays.equals(Helper.read("references/" + picture + ".qoi"), encoded.content())) {
+                check = false;
+                System.out.println("The checkpointed encoding of the picture " + picture + " is not correct.");
+            }
+            // Invert the colors of a band of rows in the middle of the picture
+            int[][] data = new int[image.data().length][];
+            for (int y = 0; y < data.length; ++y) data[y] = image.data()[y].clone();
+            var from = data.length / 2;
+            var to = Math.min(data.length, from + 3);
+            for (int y = from; y < to; ++y) {
+                for (int x = 0; x < data[y].length; ++x) data[y][x] ^= 0x00_FF_FF_FF;
+            }
+            var edited = Helper.generateImage(data, image.channels(), image.color_space());
+            var reencoded = QOICheckpoints.reencode(encoded, edited, from, to);
+            var expected = QOICheckpoints.qoiFile(edited, 8);
+            var checkpoints = QOICheckpoints.fromBytes(reencoded.checkpoints().toBytes());
+            if (!Arrays.equals(expected.content(), reencoded.content())
+                    || !Arrays.equals(expected.checkpoints().toBytes(), checkpoints.toBytes())) {
+                check = false;
+                System.out.println("The encoding of the edited picture " + picture + " is not correct.");
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be encoded in a sequence (ref folder = references/)
+     * This method will encode frames moving a square over the pictures in a sequence, then decode the frames
+     * in random order and in order and compare them with the original frames.
+     * @return true if the sequence is correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testSequence(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var image = Helper.readImage("references/" + picture + ".png");
+            var height = image.data().length;
+            var width = image.data()[0].length;
+            // A black square moving along the diagonal of the picture
+            var frames = new ArrayList<Helper.Image>();
+            var independent = 0L;
+            for (int n = 0; n < 7; ++n) {
+                int[][] data = new int[height][];
+                for (int y = 0; y < height; ++y) data[y] = image.data()[y].clone();
+                for (int y = n; y < Math.min(height, n + 4); ++y) {
+                    for (int x = n; x < Math.min(width, n + 4); ++x) data[y][x] = 0xFF_00_00_00;
+                }
+                var frame = Helper.generateImage(data, image.channels(), image.color_space());
+                frames.add(frame);
+                independent += QOIEncoder.qoiFilePacked(frame).length;
+            }
+            var content = QOISequence.encode(frames, 3);
+            var sequence = QOISequence.read(content);
+            if (sequence.frames() != frames.size() || content.length >= independent) {
+                check = false;
+                System.out.println("The sequence of the picture " + picture + " is not correct (" + content.length + " bytes).");
+            }
+            // Random access, from the last key frame, and in order
+            for (int n = frames.size() - 1; n >= 0; --n) {
+                if (!Arrays.deepEquals(frames.get(n).data(), sequence.frame(n).data()) || (n % 3 == 0 && !sequence.isKeyFrame(n))) {
+                    check = false;
+                    System.out.println("The frame " + n + " of the sequence of the picture " + picture + " is not correct.");
+                }
+            }
+            boolean[] same = {true};
+            sequence.forEachFrame((n, frame) -> same[0] &= frames.get(n).equals(frame));
+            if (!same[0]) {
+                check = false;
+                System.out.println("The frames of the sequence of the picture " + picture + " are not decoded in order.");
+            }
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be probed (ref folder = references/)
+     * This method will read the headers of the reference files in parallel and compare them with QOIDecoder::decodeHeader.
+     * A file which is not a "Quite Ok Image" file must be rejected.
+     * @return true if the headers are correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testQOIProbe(String[] pictures) {
+        boolean check = true;
+        var pool = new ForkJoinPool(3);
+        try {
+            var scan = QOIProbe.probeDirectory(Path.of("references"), pool);
+            if (scan.headers().size() != pictures.length || !scan.failures().isEmpty()) {
+                check = false;
+                System.out.println("The scan of the references found " + scan.headers().size() + " files and " + scan.failures().size() + " failures.");
+            }
+            for (QOIProbe.Header header : scan.headers()) {
+                var content = Files.readAllBytes(header.path());
+                var expected = QOIDecoder.decodeHeader(Arrays.copyOf(content, QOISpecification.HEADER_SIZE));
+                if (header.width() != expected[0] || header.height() != expected[1] || header.channels() != expected[2]
+                        || header.colorSpace() != expected[3] || header.fileSize() != content.length) {
+                    check = false;
+                    System.out.println("The probe of " + header.path() + " is not correct.");
+                }
+            }
+            // A file which is not a "Quite Ok Image" file
+            QOIProbe.probe(Path.of("references/random.png"));
+            check = false;
+            System.out.println("The probe of a png file did not fail.");
+        } catch (IOException ignored) {
+        } finally {
+            pool.shutdown();
+        }
+        return check;
+    }
+
+    /**
+     * @param pictures The array of the name of the pictures to be decoded in off-heap images (ref folder = references/)
+     * This method will decode the pictures in off-heap images split in small chunks, encode them back and compare the result
+     * with the reference file. The direct memory of a closed image, or of a truncated file, must be given back.
+     * @return true if the images are correct, false otherwise
+     */
+    @SuppressWarnings("unused")
+    private static boolean testOffHeapImage(String[] pictures) {
+        boolean check = true;
+        for (String picture : pictures) {
+            var expected = Helper.read("references/" + picture + ".qoi");
+            var pixels = QOIDecoder.decodeQoiFile(expected).data();
+            // 1000 pixels per chunk, so that most rows span two chunks
+            try (var image = OffHeapImage.decode(new java.io.ByteArrayInputStream(expected), 1000)) {
+                boolean same = image.width() == pixels[0].length && image.height() == pixels.length;
+                for (int y = 0; same && y < pixels.length; ++y) {
+                    var row = new int[pixels[y].length];
+                    image.get((long) y * row.length, row, 0, row.length);
+                    same = Arrays.equals(pixels[y], row) && image.get((long) y * row.length + row.length - 1) == pixels[y][row.length - 1];
+                }
+                var output = new ByteArrayOutputStream();
+                image.encode(output);
+                if (!same || !Arrays.equals(expected, output.toByteArray())) {
+                    check = false;
+                    System.out.println("The off-heap image of the picture " + picture + " is not correct.");
+                }
+            } catch (IOException e) {
+                check = false;
+                System.out.println("The off-heap image of the picture " + picture + " cannot be decoded : " + e.getMessage());
+            }
+        }
+        // The direct memory is given back by close, without waiting for the garbage collector
+        var direct = java.lang.management.ManagementFactory.getPlatformMXBeans(java.lang.management.BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct")).findFirst().orElseThrow();
+        var before = direct.getMemoryUsed();
+        var image = OffHeapImage.allocate(1024, 1024, QOISpecification.RGBA, QOISpecification.sRGB);
+        var allocated = direct.getMemoryUsed() - before;
+        image.close();
+        image.close();
+        if (allocated < 4 << 20 || direct.getMemoryUsed() - before >= allocated) {
+            check = false;
+            System.out.println("The direct memory of a closed off-heap image is not freed.");
+        }
+        // A truncated file is rejected and the image being decoded gives back its direct memory
+        var file = Helper.read("references/" + pictures[0] + ".qoi");
+        before = direct.getMemoryUsed();
+        try {
+            OffHeapImage.decode(new java.io.ByteArrayInputStream(Arrays.copyOf(file, file.length / 2)), 1000).close();
+            check = false;
+            System.out.println("A truncated file is decoded in an off-heap image.");
+        } catch (IOException e) {
+            if (direct.getMemoryUsed() > before) {
+                check = false;
+                System.out.println("The direct memory of an off-heap image is not freed when its file is truncated.");
+            }
+        }
+        return check;
+    }
+
     /**
      * @param pictures The array of the name of the pictures to be decoded in QOI format (ref folder = references/)
      * This method will decode the pictures in PNG format in the res/<picture>.png and compare the result with the reference file.
@@ -457,17 +1197,7 @@ public final class Main {
      */
     @SuppressWarnings("unused")
     private static void writeImageTests(String path, Helper.Image image) {
-        int type = switch (image.channels()) {
-            case 3 -> BufferedImage.TYPE_3BYTE_BGR;
-            case 4 -> BufferedImage.TYPE_4BYTE_ABGR;
-            default -> Helper.fail("Cannot write this image, image.channels() == %d", image.channels());
-        };
-        var buffer = new BufferedImage(image.data()[0].length, image.data().length, type);
-        for(var x = 0; x < buffer.getHeight(); ++x){
-            for(var y = 0 ; y < buffer.getWidth(); ++y){
-                buffer.setRGB(y, x, image.data()[x][y]);
-            }
-        }
+        var buffer = Helper.toBufferedImage(image);
         var abs_path = "tests" + File.separator + "generated" + File.separator + path;
         try {
             ImageIO.write(buffer, "png", new File(abs_path));
@@ -497,4 +1227,19 @@ public final class Main {
         java.util.Collections.sort(list);
         return java.util.List.copyOf(list).toArray(new String[0]);
     }
-}
\ No newline at end of file
+
+    /**
+     * Delete a temporary directory created by a test and the files it contains
+     * @param directory (Path) - The directory, its files must not be directories
+     * @throws IOException if a file cannot be deleted
+     */
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+}
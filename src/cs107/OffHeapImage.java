@@ -0,0 +1,300 @@
+package cs107;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Image stored outside the heap, in direct buffers, and indexed with long integers.
+ * Unlike Helper.Image, it is not limited to 2^31 pixels : it can hold images up to 2^31 - 1 by 2^31 - 1 pixels,
+ * as long as the direct memory allows it.
+ * The pixels are packed as ARGB integers, the pixel (x, y) has the index y * width + x.
+ * They are stored in chunks of at most 2^28 pixels (1 GiB), a row can span two chunks.
+ * @apiNote The direct buffers are limited by -XX:MaxDirectMemorySize, which is the maximum heap size by default :
+ * an image bigger than the heap needs this option. Closing the image frees its buffers at once
+ * (with sun.misc.Unsafe::invokeCleaner, from the jdk.unsupported module). On a JVM without it,
+ * the memory is only given back when the garbage collector finds the buffers.
+ * The image must not be used after close, and must not be closed while another thread uses it
+ */
+public final class OffHeapImage implements Closeable {
+
+    /**
+     * Number of pixels of each chunk
+     */
+    private static final int CHUNK_PIXELS = 1 << 28;
+
+    /**
+     * Number of pixels moved at once between the streams and the chunks
+     */
+    private static final int BATCH_PIXELS = 1 << 14;
+
+    private final int width;
+    private final int height;
+    private final byte channels;
+    private final byte colorSpace;
+    private final int chunkPixels;
+    /** Direct buffers owned by the image, freed by close */
+    private ByteBuffer[] buffers;
+    private IntBuffer[] chunks;
+
+    /**
+     * Frees a direct buffer at once, null if the JVM does not provide sun.misc.Unsafe::invokeCleaner
+     */
+    private static final Consumer<ByteBuffer> CLEANER = cleaner();
+
+    /**
+     * @param chunkPixels (int) - Number of pixels of each chunk, smaller than CHUNK_PIXELS to test the chunks boundaries
+     */
+    OffHeapImage(int width, int height, byte channels, byte colorSpace, int chunkPixels){
+        assert width > 0 && height > 0;
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+        assert colorSpace == QOISpecification.sRGB || colorSpace == QOISpecification.ALL;
+        assert chunkPixels > 0 && chunkPixels <= CHUNK_PIXELS;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.colorSpace = colorSpace;
+        this.chunkPixels = chunkPixels;
+        var size = (long) width * height;
+        var count = (int) ((size + chunkPixels - 1) / chunkPixels);
+        buffers = new ByteBuffer[count];
+        chunks = new IntBuffer[count];
+        try {
+            for (int i = 0; i < count; ++i){
+                var length = (int) Math.min(chunkPixels, size - (long) i * chunkPixels);
+                buffers[i] = ByteBuffer.allocateDirect(4 * length).order(ByteOrder.nativeOrder());
+                chunks[i] = buffers[i].asIntBuffer();
+            }
+        } catch (OutOfMemoryError e){
+            // Give back the chunks already allocated
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Find sun.misc.Unsafe::invokeCleaner
+     * @return (Consumer of ByteBuffer) - Frees a direct buffer, null if the method is not available
+     */
+    private static Consumer<ByteBuffer> cleaner(){
+        try {
+            var type = Class.forName("sun.misc.Unsafe");
+            var field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            var unsafe = field.get(null);
+            var invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+            return buffer -> {
+                try {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } catch (ReflectiveOperationException e){
+                    throw new IllegalStateException("The direct buffer cannot be freed", e);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e){
+            return null;
+        }
+    }
+
+    /**
+     * Allocate an image, all its pixels are 0 (transparent black)
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @return (OffHeapImage) - The new image
+     * @throws AssertionError if the size, the channels or the color space are invalid
+     * @throws OutOfMemoryError if there is not enough direct memory
+     */
+    public static OffHeapImage allocate(int width, int height, byte channels, byte colorSpace){
+        return new OffHeapImage(width, height, channels, colorSpace, CHUNK_PIXELS);
+    }
+
+    // ==================================================================================
+    // ==================================== ACCESSORS ===================================
+    // ==================================================================================
+
+    /**
+     * @return (int) - Width of the image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (byte) - Number of channels of the image
+     */
+    public byte channels(){
+        return channels;
+    }
+
+    /**
+     * @return (byte) - Color space of the image
+     */
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    /**
+     * @return (long) - Number of pixels of the image
+     */
+    public long size(){
+        return (long) width * height;
+    }
+
+    /**
+     * @param index (long) - Index of the pixel
+     * @return (int) - The ARGB pixel
+     * @throws AssertionError if the image is closed or the index is out of the image
+     */
+    public int get(long index){
+        assert chunks != null : "The image is closed";
+        assert index >= 0 && index < size();
+        return chunks[(int) (index / chunkPixels)].get((int) (index % chunkPixels));
+    }
+
+    /**
+     * @param index (long) - Index of the pixel
+     * @param pixel (int) - The new ARGB pixel
+     * @throws AssertionError if the image is closed or the index is out of the image
+     */
+    public void set(long index, int pixel){
+        assert chunks != null : "The image is closed";
+        assert index >= 0 && index < size();
+        chunks[(int) (index / chunkPixels)].put((int) (index % chunkPixels), pixel);
+    }
+
+    /**
+     * Copy consecutive pixels of the image in an array
+     * @param index (long) - Index of the first pixel to copy
+     * @param pixels (int[]) - Destination of the ARGB pixels
+     * @param offset (int) - Index in pixels of the first pixel to write
+     * @param length (int) - Number of pixels to copy
+     * @throws AssertionError if the image is closed, pixels is null or the bounds are invalid
+     */
+    public void get(long index, int[] pixels, int offset, int length){
+        assert chunks != null : "The image is closed";
+        assert pixels != null && offset >= 0 && length >= 0 && offset + length <= pixels.length;
+        assert index >= 0 && index + length <= size();
+        while (length > 0){
+            var chunk = chunks[(int) (index / chunkPixels)];
+            var position = (int) (index % chunkPixels);
+            var count = Math.min(length, chunk.capacity() - position);
+            chunk.get(position, pixels, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Copy pixels of an array in consecutive pixels of the image
+     * @param index (long) - Index of the first pixel to write
+     * @param pixels (int[]) - Source of the ARGB pixels
+     * @param offset (int) - Index in pixels of the first pixel to copy
+     * @param length (int) - Number of pixels to copy
+     * @throws AssertionError if the image is closed, pixels is null or the bounds are invalid
+     */
+    public void set(long index, int[] pixels, int offset, int length){
+        assert chunks != null : "The image is closed";
+        assert pixels != null && offset >= 0 && length >= 0 && offset + length <= pixels.length;
+        assert index >= 0 && index + length <= size();
+        while (length > 0){
+            var chunk = chunks[(int) (index / chunkPixels)];
+            var position = (int) (index % chunkPixels);
+            var count = Math.min(length, chunk.capacity() - position);
+            chunk.put(position, pixels, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Free the buffers of the image. Closing an image twice has no effect
+     */
+    @Override
+    public void close(){
+        var owned = buffers;
+        chunks = null;
+        buffers = null;
+        if (owned == null || CLEANER == null) return;
+        for (ByteBuffer buffer : owned){
+            if (buffer != null) CLEANER.accept(buffer);
+        }
+    }
+
+    // ==================================================================================
+    // =============================== ENCODING / DECODING ==============================
+    // ==================================================================================
+
+    /**
+     * Decode a "Quite Ok Image" file in a new off-heap image.
+     * The file is read as a stream, it is never fully loaded in memory
+     * @param input (InputStream) - Stream to read the file from, closed by this method
+     * @return (OffHeapImage) - The decoded image
+     * @throws IOException if the stream cannot be read or is not a valid "Quite Ok Image" file
+     * @throws AssertionError if input is null
+     */
+    public static OffHeapImage decode(InputStream input) throws IOException {
+        return decode(input, CHUNK_PIXELS);
+    }
+
+    static OffHeapImage decode(InputStream input, int chunkPixels) throws IOException {
+        assert input != null;
+        var batch = QOIBufferPool.borrowInts(BATCH_PIXELS);
+        OffHeapImage image = null;
+        try (var stream = new QOIInputStream(input)){
+            image = new OffHeapImage(stream.width(), stream.height(), stream.channels(), stream.colorSpace(), chunkPixels);
+            var index = 0L;
+            int count;
+            while ((count = stream.readPixels(batch, 0, BATCH_PIXELS)) > 0){
+                image.set(index, batch, 0, count);
+                index += count;
+            }
+        } catch (Throwable e){
+            // A truncated or invalid stream (also detected when the stream is closed) : give back the chunks now
+            if (image != null) image.close();
+            throw e;
+        } finally {
+            QOIBufferPool.release(batch);
+        }
+        return image;
+    }
+
+    /**
+     * Encode the image using the "Quite Ok Image" Protocol.
+     * The chunks are written as soon as they are encoded, the file is never fully stored in memory
+     * @apiNote The bytes written are identical to QOIEncoder::qoiFile for the same pixels
+     * @param output (OutputStream) - Stream where to write the file, closed by this method
+     * @throws IOException if the file cannot be written
+     * @throws AssertionError if output is null or the image is closed
+     */
+    public void encode(OutputStream output) throws IOException {
+        assert output != null;
+        assert chunks != null : "The image is closed";
+        var batch = QOIBufferPool.borrowInts(BATCH_PIXELS);
+        try (var stream = new QOIOutputStream(output, width, height, channels, colorSpace)){
+            var size = size();
+            for (long index = 0; index < size; index += BATCH_PIXELS){
+                var count = (int) Math.min(BATCH_PIXELS, size - index);
+                get(index, batch, 0, count);
+                stream.writePixels(batch, 0, count);
+            }
+        } finally {
+            QOIBufferPool.release(batch);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package cs107;
+
+/**
+ * 64 bits hash of the content of an image in the style of xxHash64 (same primes, rounds and avalanche),
+ * over the pixels packed as ARGB integers. Each row is read by stripes of 8 pixels (4 words of 64 bits)
+ * feeding 4 independent accumulators, the pixels after the last stripe of a row feed the first one.
+ * The size, the channels and the color space of the image are mixed in the result.
+ * @apiNote The value depends on the seed : two seeds give two independent hashes of the same image
+ */
+public final class PixelHash {
+
+    // Primes of xxHash64
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+
+    // Hide default constructor
+    private PixelHash(){}
+
+    /**
+     * Hash the content of an image
+     * @param data (int[][]) - ARGB stored pixels, as in Helper.Image::data
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @param seed (long) - Seed of the hash
+     * @return (long) - The hash
+     * @throws AssertionError if data is null
+     */
+    public static long hash64(int[][] data, byte channels, byte colorSpace, long seed){
+        assert data != null;
+        long a1 = seed + PRIME_1 + PRIME_2, a2 = seed + PRIME_2, a3 = seed, a4 = seed - PRIME_1;
+        for (int[] row : data){
+            var x = 0;
+            for (; x + 8 <= row.length; x += 8){
+                a1 = round(a1, (long) row[x] << 32 | (row[x + 1] & 0xFFFFFFFFL));
+                a2 = round(a2, (long) row[x + 2] << 32 | (row[x + 3] & 0xFFFFFFFFL));
+                a3 = round(a3, (long) row[x + 4] << 32 | (row[x + 5] & 0xFFFFFFFFL));
+                a4 = round(a4, (long) row[x + 6] << 32 | (row[x + 7] & 0xFFFFFFFFL));
+            }
+            for (; x < row.length; ++x){
+                a1 = round(a1, row[x] & 0xFFFFFFFFL);
+            }
+        }
+        var width = data.length == 0 ? 0 : data[0].length;
+        var shape = ((long) width << 32 | (data.length & 0xFFFFFFFFL)) ^ ((long) channels << 8 | colorSpace & 0xFF);
+
+        var hash = Long.rotateLeft(a1, 1) + Long.rotateLeft(a2, 7) + Long.rotateLeft(a3, 12) + Long.rotateLeft(a4, 18);
+        hash = merge(merge(merge(merge(hash, a1), a2), a3), a4);
+        hash ^= round(0, shape);
+        hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+        // Avalanche
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long accumulator, long input){
+        return Long.rotateLeft(accumulator + input * PRIME_2, 31) * PRIME_1;
+    }
+
+    private static long merge(long hash, long accumulator){
+        return (hash ^ round(0, accumulator)) * PRIME_1 + PRIME_4;
+    }
+
+}
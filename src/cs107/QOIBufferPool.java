@@ -0,0 +1,196 @@
+package cs107;
+
+/**
+ * Per thread pool of the scratch arrays of the "Quite Ok Image" codec :
+ * hash tables, pixel buffers and output buffers.
+ * The entry points of the codec borrow their scratch arrays here and give them back
+ * when they are done, so a thread converting images in a loop stops allocating
+ * once its pool holds arrays big enough for its images.
+ * Each thread keeps at most 16 arrays and at most maxRetainedBytes() bytes : when an array does not fit,
+ * the arrays given back the longest time ago are left to the garbage collector.
+ * @apiNote The initial limit can be set with the system property cs107.pool.maxRetainedBytes
+ */
+public final class QOIBufferPool {
+
+    /**
+     * Default number of bytes kept by each thread : 64 MiB
+     */
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 64L << 20;
+
+    /**
+     * Number of arrays kept by each thread
+     */
+    private static final int SLOTS = 16;
+
+    /**
+     * Approximation of the size of the header of an array in the heap
+     */
+    private static final int ARRAY_HEADER_SIZE = 16;
+
+    private static volatile long maxRetainedBytes = Long.getLong("cs107.pool.maxRetainedBytes", DEFAULT_MAX_RETAINED_BYTES);
+
+    private static final ThreadLocal<Pool> POOLS = ThreadLocal.withInitial(Pool::new);
+
+    /**
+     * Arrays kept by one thread (byte[] or int[]), with the time they were given back.
+     * When the pool is full, the arrays given back the longest time ago are dropped first
+     */
+    private static final class Pool {
+        final Object[] arrays = new Object[SLOTS];
+        final long[] times = new long[SLOTS];
+        long clock = 0;
+        long retained = 0;
+
+        /**
+         * Take the smallest array of the given type whose length is between length and twice length
+         * @return (Object) - The array, null if there is none
+         */
+        Object take(Class<?> type, int length){
+            var best = -1;
+            for (int i = 0; i < SLOTS; ++i){
+                var array = arrays[i];
+                if (array != null && array.getClass() == type){
+                    var size = lengthOf(array);
+                    if (size >= length && size / 2 <= length && (best < 0 || size < lengthOf(arrays[best]))){
+                        best = i;
+                    }
+                }
+            }
+            if (best < 0) return null;
+            var array = arrays[best];
+            arrays[best] = null;
+            retained -= sizeOf(array);
+            return array;
+        }
+
+        /**
+         * Keep an array, dropping the oldest arrays until it fits
+         */
+        void put(Object array){
+            var size = sizeOf(array);
+            var max = maxRetainedBytes;
+            if (size > max) return;
+            while (true){
+                var free = -1;
+                var oldest = -1;
+                for (int i = 0; i < SLOTS; ++i){
+                    if (arrays[i] == null){
+                        free = i;
+                    } else if (oldest < 0 || times[i] < times[oldest]){
+                        oldest = i;
+                    }
+                }
+                if (free >= 0 && retained + size <= max){
+                    arrays[free] = array;
+                    times[free] = ++clock;
+                    retained += size;
+                    return;
+                }
+                retained -= sizeOf(arrays[oldest]);
+                arrays[oldest] = null;
+            }
+        }
+
+        private static int lengthOf(Object array){
+            return array instanceof byte[] bytes ? bytes.length : ((int[]) array).length;
+        }
+
+        private static long sizeOf(Object array){
+            return ARRAY_HEADER_SIZE + (long) lengthOf(array) * (array instanceof byte[] ? 1 : 4);
+        }
+    }
+
+    // Hide default constructor
+    private QOIBufferPool(){}
+
+    // ==================================================================================
+    // ================================== CONFIGURATION =================================
+    // ==================================================================================
+
+    /**
+     * @return (long) - Maximum number of bytes kept by the pool of each thread
+     */
+    public static long maxRetainedBytes(){
+        return maxRetainedBytes;
+    }
+
+    /**
+     * Change the maximum number of bytes kept by the pool of each thread.
+     * Arrays already in the pools are kept until they are borrowed.
+     * @param bytes (long) - The new limit, 0 disables the pools
+     * @throws AssertionError if bytes is negative
+     */
+    public static void setMaxRetainedBytes(long bytes){
+        assert bytes >= 0;
+        maxRetainedBytes = bytes;
+    }
+
+    /**
+     * @return (long) - Number of bytes kept by the pool of the current thread
+     */
+    public static long retainedBytes(){
+        return POOLS.get().retained;
+    }
+
+    /**
+     * Drop all the arrays kept by the pool of the current thread
+     */
+    public static void clear(){
+        var pool = POOLS.get();
+        java.util.Arrays.fill(pool.arrays, null);
+        pool.retained = 0;
+    }
+
+    // ==================================================================================
+    // ================================== BYTE ARRAYS ===================================
+    // ==================================================================================
+
+    /**
+     * Borrow a byte array from the pool of the current thread
+     * @param length (int) - Minimum length of the array
+     * @return (byte[]) - An array of at least length and at most twice length bytes (or exactly length if
+     * nothing fits in the pool). Its content is undefined
+     * @throws AssertionError if length is negative
+     */
+    public static byte[] borrowBytes(int length){
+        assert length >= 0;
+        var array = (byte[]) POOLS.get().take(byte[].class, length);
+        return array == null ? new byte[length] : array;
+    }
+
+    /**
+     * Give a byte array back to the pool of the current thread.
+     * The caller must not use the array anymore
+     * @param array (byte[]) - The array, can be null
+     */
+    public static void release(byte[] array){
+        if (array != null) POOLS.get().put(array);
+    }
+
+    // ==================================================================================
+    // =================================== INT ARRAYS ===================================
+    // ==================================================================================
+
+    /**
+     * Borrow an int array from the pool of the current thread
+     * @param length (int) - Minimum length of the array
+     * @return (int[]) - An array of at least length and at most twice length integers (or exactly length if
+     * nothing fits in the pool). Its content is undefined
+     * @throws AssertionError if length is negative
+     */
+    public static int[] borrowInts(int length){
+        assert length >= 0;
+        var array = (int[]) POOLS.get().take(int[].class, length);
+        return array == null ? new int[length] : array;
+    }
+
+    /**
+     * Give an int array back to the pool of the current thread.
+     * The caller must not use the array anymore
+     * @param array (int[]) - The array, can be null
+     */
+    public static void release(int[] array){
+        if (array != null) POOLS.get().put(array);
+    }
+
+}
@@ -0,0 +1,264 @@
+package cs107;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checkpoints of the encoder of a "Quite Ok Image" file, stored in a sidecar file next to it.
+ * A checkpoint holds the state of the encoder at the beginning of a row : the offset of the next chunk,
+ * the previous pixel, the pending QOI_OP_RUN and the hash table. When some rows of the image change,
+ * the file is encoded again from the last checkpoint before them (See reencode), and the end of the
+ * old file is kept as soon as the encoder is back in the state of one of the old checkpoints.
+ * @apiNote The file itself is not modified, any decoder can still read it
+ */
+public final class QOICheckpoints {
+
+    /**
+     * Magic Number of a checkpoints file
+     */
+    public static final byte[] MAGIC = new byte[]{'q', 'o', 'i', 'c'};
+
+    /**
+     * Size of a serialized checkpoint : offset, previous pixel, pending run and the hash table
+     */
+    private static final int CHECKPOINT_SIZE = 4 + 4 + 4 + 64 * 4;
+
+    /**
+     * State of the encoder at the beginning of a row
+     * @param offset (int) - Index in the file of the next chunk
+     * @param previous (int) - Last pixel of the previous row, packed as ARGB
+     * @param run (int) - Number of pixels of the pending QOI_OP_RUN
+     * @param index (int[]) - Hash table of the encoder
+     */
+    record Checkpoint(int offset, int previous, int run, int[] index){}
+
+    /**
+     * Result of QOICheckpoints::qoiFile and QOICheckpoints::reencode
+     * @param content (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @param checkpoints (QOICheckpoints) - Checkpoints of the file
+     */
+    public record Encoded(byte[] content, QOICheckpoints checkpoints){}
+
+    final int interval;
+    final int width;
+    final int height;
+    /** The checkpoint k is at the beginning of the row (k + 1) * interval */
+    final Checkpoint[] checkpoints;
+
+    private QOICheckpoints(int interval, int width, int height, Checkpoint[] checkpoints){
+        this.interval = interval;
+        this.width = width;
+        this.height = height;
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * @return (int) - Number of rows between two checkpoints
+     */
+    public int interval(){
+        return interval;
+    }
+
+    /**
+     * @return (int) - Number of checkpoints, the beginning of the file is not counted
+     */
+    public int size(){
+        return checkpoints.length;
+    }
+
+    // ==================================================================================
+    // ================================ ENCODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Encode the image and record a checkpoint every interval rows
+     * @param image (Helper.Image) - Image to encode
+     * @param interval (int) - Number of rows between two checkpoints
+     * @return (Encoded) - The "Quite Ok Image" file, identical to QOIEncoder::qoiFile, and its checkpoints
+     * @throws AssertionError if the image is null, too big to fit in an array or the interval is not positive
+     */
+    public static Encoded qoiFile(Helper.Image image, int interval){
+        assert image != null;
+        assert interval > 0;
+        var data = image.data();
+        var header = QOIEncoder.qoiHeader(image);
+        var output = QOIBufferPool.borrowBytes(bound(header.length, data, 0));
+        System.arraycopy(header, 0, output, 0, header.length);
+        var checkpoints = new Checkpoint[(data.length - 1) / interval];
+        var state = new QOIEncoder.State();
+        var position = header.length;
+        for (int y = 0; y < data.length; ++y){
+            if (y > 0 && y % interval == 0){
+                checkpoints[y / interval - 1] = checkpoint(state, position);
+            }
+            position = encodeRow(state, data[y], output, position);
+        }
+        var content = finish(state, output, position);
+        QOIBufferPool.release(output);
+        return new Encoded(content, new QOICheckpoints(interval, data[0].length, data.length, checkpoints));
+    }
+
+    /**
+     * Encode an image again after some of its rows changed.
+     * The beginning of the file is copied up to the last checkpoint before the first changed row,
+     * the rows are then encoded from this checkpoint, and the end of the old file is copied
+     * at the first checkpoint after the changed rows where the encoder is in the same state as before.
+     * If the state never converges (when the hash table keeps pixels of the changed rows), the image is encoded up to the end.
+     * @apiNote The result is identical to qoiFile(image, interval)
+     * @param encoded (Encoded) - File and checkpoints of the image before the change
+     * @param image (Helper.Image) - The changed image, with the same size, channels and color space
+     * @param from (int) - First changed row
+     * @param to (int) - Row after the last changed row
+     * @return (Encoded) - The file of the changed image and its checkpoints
+     * @throws AssertionError if one of the parameters is null, the image does not have the size of the old one,
+     * the checkpoints do not belong to the file or the range of rows is not valid
+     */
+    public static Encoded reencode(Encoded encoded, Helper.Image image, int from, int to){
+        assert encoded != null && image != null;
+        var old = encoded.checkpoints();
+        var content = encoded.content();
+        var data = image.data();
+        assert data.length == old.height && data[0].length == old.width : "The image does not have the size of the old one";
+        assert 0 <= from && from < to && to <= data.length;
+        var interval = old.interval;
+
+        // Restart from the last checkpoint before the first changed row
+        var first = from / interval;
+        var state = new QOIEncoder.State();
+        var start = QOISpecification.HEADER_SIZE;
+        if (first > 0){
+            var checkpoint = old.checkpoints[first - 1];
+            state.previous = checkpoint.previous();
+            state.run = checkpoint.run();
+            System.arraycopy(checkpoint.index(), 0, state.index, 0, state.index.length);
+            start = checkpoint.offset();
+        }
+        assert start <= content.length : "The checkpoints do not belong to this file";
+        var output = QOIBufferPool.borrowBytes(bound(start, data, first * interval));
+        // The header is copied too : the channels or the color space may have changed
+        System.arraycopy(content, 0, output, 0, start);
+        System.arraycopy(QOIEncoder.qoiHeader(image), 0, output, 0, QOISpecification.HEADER_SIZE);
+        var checkpoints = old.checkpoints.clone();
+        var position = start;
+        try {
+            for (int y = first * interval; y < data.length; ++y){
+                if (y > first * interval && y % interval == 0){
+                    var k = y / interval - 1;
+                    var checkpoint = old.checkpoints[k];
+                    if (y >= to && checkpoint.previous() == state.previous && checkpoint.run() == state.run
+                            && Arrays.equals(checkpoint.index(), state.index)){
+                        // Same state as before : the rest of the file does not change, only its offset
+                        return splice(output, position, content, checkpoint.offset(), old, checkpoints, k);
+                    }
+                    checkpoints[k] = checkpoint(state, position);
+                }
+                position = encodeRow(state, data[y], output, position);
+            }
+            return new Encoded(finish(state, output, position), new QOICheckpoints(interval, old.width, old.height, checkpoints));
+        } finally {
+            QOIBufferPool.release(output);
+        }
+    }
+
+    /**
+     * Join the new beginning of a file and the end of the old file
+     * @param output (byte[]) - New beginning of the file
+     * @param position (int) - Size of the new beginning
+     * @param content (byte[]) - Old file
+     * @param offset (int) - Index in the old file of the end to keep
+     * @param old (QOICheckpoints) - Checkpoints of the old file
+     * @param checkpoints (Checkpoint[]) - Checkpoints of the new file, the checkpoints from k are moved
+     * @param k (int) - Index of the checkpoint where the files join
+     * @return (Encoded) - The new file and its checkpoints
+     */
+    private static Encoded splice(byte[] output, int position, byte[] content, int offset, QOICheckpoints old, Checkpoint[] checkpoints, int k){
+        var file = new byte[position + content.length - offset];
+        System.arraycopy(output, 0, file, 0, position);
+        System.arraycopy(content, offset, file, position, content.length - offset);
+        var shift = position - offset;
+        for (int i = k; i < checkpoints.length; ++i){
+            var checkpoint = old.checkpoints[i];
+            checkpoints[i] = new Checkpoint(checkpoint.offset() + shift, checkpoint.previous(), checkpoint.run(), checkpoint.index());
+        }
+        return new Encoded(file, new QOICheckpoints(old.interval, old.width, old.height, checkpoints));
+    }
+
+    private static int encodeRow(QOIEncoder.State state, int[] row, byte[] output, int position){
+        for (int pixel : row){
+            position = QOIEncoder.encodePixel(state, pixel, output, position);
+        }
+        return position;
+    }
+
+    private static Checkpoint checkpoint(QOIEncoder.State state, int position){
+        return new Checkpoint(position, state.previous, state.run, state.index.clone());
+    }
+
+    /**
+     * Write the pending QOI_OP_RUN and the QOI_EOF
+     * @return (byte[]) - The file, of the exact size
+     */
+    private static byte[] finish(QOIEncoder.State state, byte[] output, int position){
+        position = QOIEncoder.flushRun(state, output, position);
+        System.arraycopy(QOISpecification.QOI_EOF, 0, output, position, QOISpecification.QOI_EOF.length);
+        return Arrays.copyOf(output, position + QOISpecification.QOI_EOF.length);
+    }
+
+    /**
+     * Size of the output needed to encode the rows of an image after a prefix
+     * @return (int) - The prefix, 5 bytes per pixel (QOI_OP_RGBA), a QOI_OP_RUN and the QOI_EOF
+     */
+    private static int bound(int prefix, int[][] data, int from){
+        long size = prefix + 5L * (data.length - from) * data[0].length + 1 + QOISpecification.QOI_EOF.length;
+        assert size <= Integer.MAX_VALUE - 8 : "The image is too big to be encoded in an array";
+        return (int) size;
+    }
+
+    // ==================================================================================
+    // ============================= SIDECAR FILE METHODS ===============================
+    // ==================================================================================
+
+    /**
+     * Creates the representation in memory of the sidecar file
+     * @return (byte[]) - MAGIC, interval, width, height, number of checkpoints
+     * and the checkpoints, all the integers are stored in big endian
+     */
+    public byte[] toBytes(){
+        var buffer = ByteBuffer.allocate(MAGIC.length + 4 * 4 + checkpoints.length * CHECKPOINT_SIZE);
+        buffer.put(MAGIC).putInt(interval).putInt(width).putInt(height).putInt(checkpoints.length);
+        for (Checkpoint checkpoint : checkpoints){
+            buffer.putInt(checkpoint.offset()).putInt(checkpoint.previous()).putInt(checkpoint.run());
+            for (int pixel : checkpoint.index()) buffer.putInt(pixel);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Read the checkpoints from the content of a sidecar file
+     * @param content (byte[]) - Content of the sidecar file (See toBytes)
+     * @return (QOICheckpoints) - The checkpoints
+     * @throws AssertionError if content is null or is not a valid sidecar file
+     */
+    public static QOICheckpoints fromBytes(byte[] content){
+        assert content != null;
+        assert content.length >= MAGIC.length + 4 * 4 : "The content is too small";
+        assert Arrays.equals(ArrayUtils.extract(content, 0, MAGIC.length), MAGIC) : "Magic number is not correct";
+        var buffer = ByteBuffer.wrap(content, MAGIC.length, content.length - MAGIC.length);
+        var interval = buffer.getInt();
+        var width = buffer.getInt();
+        var height = buffer.getInt();
+        var checkpoints = new Checkpoint[buffer.getInt()];
+        assert interval > 0 && checkpoints.length == (height - 1) / interval : "The number of checkpoints is not correct";
+        assert buffer.remaining() == (long) checkpoints.length * CHECKPOINT_SIZE : "The number of checkpoints is not correct";
+        for (int i = 0; i < checkpoints.length; ++i){
+            var offset = buffer.getInt();
+            var previous = buffer.getInt();
+            var run = buffer.getInt();
+            var index = new int[64];
+            for (int slot = 0; slot < index.length; ++slot) index[slot] = buffer.getInt();
+            checkpoints[i] = new Checkpoint(offset, previous, run, index);
+        }
+        return new QOICheckpoints(interval, width, height, checkpoints);
+    }
+
+}
@@ -1,6 +1,13 @@
 package cs107;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 import static cs107.Helper.Image;
 import static cs107.QOISpecification.*;
@@ -49,6 +56,29 @@ public final class QOIDecoder {
         return new int[]{width, height, (int) channels, (int) color_space};
     }
 
+    /**
+     * Extract useful information from the "Quite Ok Image" header at the beginning of a buffer
+     * @apiNote Same checks as decodeHeader(byte[]), the header is read in place
+     * @param content (ByteBuffer) - Buffer starting with a "Quite Ok Image" header, its position is not used
+     * @return (int[]) - Array such as its content is {width, height, channels, color space}
+     * @throws AssertionError See handouts section 6.1
+     */
+    public static int[] decodeHeader(ByteBuffer content){
+        assert content != null : "Header is null";
+        assert content.limit() >= QOISpecification.HEADER_SIZE : "Header length is not the expected one";
+        for (int i = 0; i < QOISpecification.QOI_MAGIC.length; ++i){
+            assert content.get(i) == QOISpecification.QOI_MAGIC[i] : "Magic number is not correct";
+        }
+        // The width and the height are stored in big endian
+        int width = (content.get(4) & 0xFF) << 24 | (content.get(5) & 0xFF) << 16 | (content.get(6) & 0xFF) << 8 | (content.get(7) & 0xFF);
+        int height = (content.get(8) & 0xFF) << 24 | (content.get(9) & 0xFF) << 16 | (content.get(10) & 0xFF) << 8 | (content.get(11) & 0xFF);
+        byte channels = content.get(12);
+        byte color_space = content.get(13);
+        assert color_space == QOISpecification.sRGB || color_space == QOISpecification.ALL : "Color space is not correct";
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA : "Channels are not correct";
+        return new int[]{width, height, (int) channels, (int) color_space};
+    }
+
     // ==================================================================================
     // =========================== ATOMIC DECODING METHODS ==============================
     // ==================================================================================
@@ -260,4 +290,495 @@ public final class QOIDecoder {
         // Convert the 2D array of pixels to a BufferedImage
         return Helper.generateImage(image, channels, colorSpace);
     }
+
+    // ==================================================================================
+    // ========================= PACKED DECODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * State of the decoder between two pixels.
+     * Pixels are packed as ARGB integers, the same format as Helper.Image::data
+     */
+    static final class State {
+        /** Hash table of the already decoded pixels */
+        final int[] index;
+        /** Last decoded pixel */
+        int previous = QOISpecification.START_PIXEL_ARGB;
+        /** Number of pixels of the current QOI_OP_RUN which are not written yet */
+        int run = 0;
+        /** Index in the input of the next chunk to decode */
+        int position;
+
+        State(int position){
+            this(position, new int[64]);
+        }
+
+        /**
+         * @param position (int) - Index in the input of the first chunk
+         * @param index (int[]) - Hash table to use, at least 64 integers, cleared by the constructor
+         */
+        State(int position, int[] index){
+            assert index.length >= 64;
+            Arrays.fill(index, 0, 64, 0);
+            this.position = position;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Decode the chunks of the input and store the packed pixels in output
+     * until output is full or the input is exhausted.
+     * A QOI_OP_RUN that does not fit in output is kept in the state for the next call.
+     * @apiNote This is the only interpreter of the chunks, every decoding path of the codec goes through it
+     * @param state (State) - State of the decoder, updated by this call
+     * @param input (byte[]) - Stream of bytes to read from
+     * @param end (int) - Index in the input after the last chunk to decode
+     * @param output (int[]) - Buffer where to store the ARGB pixels, null to only update the state (See skipPixels)
+     * @param from (int) - Index in output of the first pixel to write
+     * @param to (int) - Index in output after the last pixel to write
+     * @return (int) - Index in output after the last written pixel
+     */
+    static int decodePixels(State state, byte[] input, int end, int[] output, int from, int to){
+        var index = state.index;
+        var previous = state.previous;
+        var position = state.position;
+        var run = state.run;
+        while (from < to){
+            if (run > 0){ // Finish the pending run before reading a new chunk
+                var count = Math.min(run, to - from);
+                if (output != null) Arrays.fill(output, from, from + count, previous);
+                from += count;
+                run -= count;
+                continue;
+            }
+            if (position >= end) break;
+            int chunk = input[position++];
+            if (chunk == QOISpecification.QOI_OP_RGB_TAG){
+                previous = (previous & 0xFF_00_00_00) | (input[position] & 0xFF) << 16 | (input[position + 1] & 0xFF) << 8 | (input[position + 2] & 0xFF);
+                position += 3;
+            } else if (chunk == QOISpecification.QOI_OP_RGBA_TAG){
+                previous = (input[position + 3] & 0xFF) << 24 | (input[position] & 0xFF) << 16 | (input[position + 1] & 0xFF) << 8 | (input[position + 2] & 0xFF);
+                position += 4;
+            } else switch ((byte) (chunk & 0b11000000)){
+                case QOISpecification.QOI_OP_INDEX_TAG -> {
+                    previous = index[chunk & 0b111111];
+                    if (output != null) output[from] = previous;
+                    ++from;
+                    continue; // The pixel is already in the hash table
+                }
+                case QOISpecification.QOI_OP_DIFF_TAG -> previous = add(previous,
+                        ((chunk >> 4) & 0b11) - 2, ((chunk >> 2) & 0b11) - 2, (chunk & 0b11) - 2);
+                case QOISpecification.QOI_OP_LUMA_TAG -> {
+                    int dg = (chunk & 0b111111) - 32;
+                    int next = input[position++];
+                    previous = add(previous, dg + ((next >> 4) & 0b1111) - 8, dg, dg + (next & 0b1111) - 8);
+                }
+                default -> run = (chunk & 0b111111) + 1; // QOI_OP_RUN, written at the next iteration
+            }
+            index[QOISpecification.hash(previous)] = previous;
+            if (run == 0){
+                if (output != null) output[from] = previous;
+                ++from;
+            }
+        }
+        state.previous = previous;
+        state.position = position;
+        state.run = run;
+        return from;
+    }
+
+    /**
+     * Add a difference to each color channel of a packed pixel
+     * @param pixel (int) - ARGB pixel
+     * @param dr (int) - Difference on the red channel
+     * @param dg (int) - Difference on the green channel
+     * @param db (int) - Difference on the blue channel
+     * @return (int) - The new pixel, each channel wraps around like a byte
+     */
+    private static int add(int pixel, int dr, int dg, int db){
+        return (pixel & 0xFF_00_00_00)
+                | ((pixel >> 16) + dr & 0xFF) << 16
+                | ((pixel >> 8) + dg & 0xFF) << 8
+                | (pixel + db & 0xFF);
+    }
+
+    /**
+     * Decode the given data using the "Quite Ok Image" Protocol
+     * in a flat buffer of packed ARGB pixels
+     * @param data (byte[]) - Array containing the data to decode
+     * @param start (int) - Index in data of the first chunk
+     * @param end (int) - Index in data after the last chunk
+     * @param width (int) - The width of the expected output
+     * @param height (int) - The height of the expected output
+     * @param buffer (int[]) - Buffer to reuse, can be null or smaller than width * height
+     * @return (int[]) - Decoded pixels, the pixel (x, y) is stored at y * width + x.
+     * This is buffer itself when it is big enough, a new array otherwise
+     * @throws AssertionError if data is null, the bounds or the size of the image are invalid
+     * or data does not contain enough pixels
+     */
+    public static int[] decodeData(byte[] data, int start, int end, int width, int height, int[] buffer){
+        assert data != null;
+        assert 0 <= start && start <= end && end <= data.length;
+        assert width > 0 && height > 0 && (long) width * height <= Integer.MAX_VALUE - 8;
+        var size = width * height;
+        if (buffer == null || buffer.length < size){
+            buffer = new int[size];
+        }
+        var index = QOIBufferPool.borrowInts(64);
+        var written = decodePixels(new State(start, index), data, end, buffer, 0, size);
+        QOIBufferPool.release(index);
+        assert written == size : "The data does not contain enough pixels";
+        return buffer;
+    }
+
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol.
+     * The pixels are decoded straight into the rows of the image,
+     * without intermediate buffers.
+     * @param content (byte[]) - Content of the file to decode
+     * @return (Image) - Decoded image, equal to decodeQoiFile(content)
+     * @throws AssertionError if content is null or is not a valid "Quite Ok Image" file
+     */
+    public static Image decodeQoiFilePacked(byte[] content){
+        assert content != null;
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        assert ArrayUtils.endsWith(content, QOISpecification.QOI_EOF);
+
+        int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+        int width = header[0];
+        int height = header[1];
+        var end = content.length - QOISpecification.QOI_EOF.length;
+        var index = QOIBufferPool.borrowInts(64);
+        var state = new State(QOISpecification.HEADER_SIZE, index);
+        var image = new int[height][width];
+        for (int[] row : image){
+            var written = decodePixels(state, content, end, row, 0, width);
+            assert written == width : "The data does not contain enough pixels";
+        }
+        QOIBufferPool.release(index);
+        return Helper.generateImage(image, (byte) header[2], (byte) header[3]);
+    }
+
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol.
+     * The segments between two seek points are decoded concurrently.
+     * @param content (byte[]) - Content of the file to decode
+     * @param seekIndex (QOISeekIndex) - Seek points of the file (See QOISeekIndex::qoiFile)
+     * @param pool (ForkJoinPool) - Pool where the segments are decoded
+     * @return (Image) - Decoded image, equal to decodeQoiFile(content)
+     * @throws AssertionError if one of the parameters is null, content is not a valid "Quite Ok Image" file
+     * or the seek points do not belong to this file
+     */
+    public static Image decodeQoiFile(byte[] content, QOISeekIndex seekIndex, ForkJoinPool pool){
+        assert content != null && seekIndex != null && pool != null;
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        assert ArrayUtils.endsWith(content, QOISpecification.QOI_EOF);
+        assert seekIndex.length == content.length : "The seek points do not belong to this file";
+
+        int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+        int width = header[0];
+        int height = header[1];
+        assert (long) width * height <= Integer.MAX_VALUE;
+        var image = new int[height][width];
+        var points = seekIndex.points;
+        var end = content.length - QOISpecification.QOI_EOF.length;
+        QOIParallelEncoder.forEach(pool, points.length + 1, k -> {
+            // The segment k starts at the seek point k - 1 and ends at the seek point k
+            var state = new State(k == 0 ? QOISpecification.HEADER_SIZE : points[k - 1].offset());
+            var from = k == 0 ? 0 : points[k - 1].pixel();
+            var to = k == points.length ? width * height : points[k].pixel();
+            var last = k == points.length ? end : points[k].offset();
+            if (k > 0){
+                state.previous = points[k - 1].previous();
+                System.arraycopy(points[k - 1].index(), 0, state.index, 0, state.index.length);
+            }
+            while (from < to){
+                var y = from / width;
+                var x = from % width;
+                var count = Math.min(width - x, to - from);
+                var written = decodePixels(state, content, last, image[y], x, x + count);
+                assert written == x + count : "The data does not contain enough pixels";
+                from += count;
+            }
+        });
+        return Helper.generateImage(image, (byte) header[2], (byte) header[3]);
+    }
+
+    /**
+     * Number of bytes of chunks read at once from a file
+     */
+    private static final int FILE_WINDOW_SIZE = 1 << 16;
+
+    /**
+     * Decode a file stored in the disk using the "Quite Ok Image" Protocol.
+     * The chunks are read from the file by windows of FILE_WINDOW_SIZE bytes in a pooled array
+     * and decoded with decodePixels : the file is never fully loaded on the heap.
+     * @apiNote The file is not memory-mapped : decodePixels only reads arrays, so the chunks
+     * of a mapping would be copied on the heap all the same
+     * @param path (Path) - Path of the file to decode
+     * @return (Image) - Decoded image, equal to decodeQoiFile(Helper.read(path))
+     * @throws AssertionError if path is null or the file is not a valid "Quite Ok Image" file
+     */
+    public static Image decodeQoiFile(Path path){
+        assert path != null;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)){
+            var size = channel.size();
+            assert size >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length : "The file is too small";
+            var end = size - QOISpecification.QOI_EOF.length;
+            var eof = ByteBuffer.allocate(QOISpecification.QOI_EOF.length);
+            readFully(channel, eof, end);
+            assert Arrays.equals(eof.array(), QOISpecification.QOI_EOF) : "The file does not end with QOI_EOF";
+            var head = ByteBuffer.allocate(QOISpecification.HEADER_SIZE);
+            readFully(channel, head, 0);
+            int[] header = decodeHeader(head);
+            int width = header[0];
+            int height = header[1];
+            // The last chunk of a window can end in the next one : at most 4 bytes are carried to the next window
+            var window = QOIBufferPool.borrowBytes(FILE_WINDOW_SIZE + 4);
+            var index = QOIBufferPool.borrowInts(64);
+            var state = new State(0, index);
+            long next = QOISpecification.HEADER_SIZE; // Index in the file of the first byte after the window
+            var limit = 0;
+            var safe = 0; // Index in the window after the last chunk fully present in the window
+            var image = new int[height][width];
+            try {
+                for (int[] row : image){
+                    var x = decodePixels(state, window, safe, row, 0, width);
+                    while (x < width && next < end){
+                        var carry = limit - state.position;
+                        System.arraycopy(window, state.position, window, 0, carry);
+                        state.position = 0;
+                        var length = (int) Math.min(FILE_WINDOW_SIZE, end - next);
+                        readFully(channel, ByteBuffer.wrap(window, carry, length), next);
+                        next += length;
+                        limit = carry + length;
+                        safe = next == end ? limit : limit - 4;
+                        x = decodePixels(state, window, safe, row, x, width);
+                    }
+                    assert x == width : "The data does not contain enough pixels";
+                }
+            } finally {
+                QOIBufferPool.release(index);
+                QOIBufferPool.release(window);
+            }
+            return Helper.generateImage(image, (byte) header[2], (byte) header[3]);
+        } catch (IOException e){
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+    /**
+     * Fill the remaining bytes of a buffer from a file
+     * @param channel (FileChannel) - File to read
+     * @param buffer (ByteBuffer) - Buffer to fill
+     * @param position (long) - Index in the file of the first byte to read
+     * @throws IOException if the file cannot be read or ends before the buffer is full
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()){
+            var read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("The file is shorter than expected");
+            position += read;
+        }
+    }
+
+    // ==================================================================================
+    // ============================ REGION DECODING METHODS =============================
+    // ==================================================================================
+
+    /**
+     * Decode the chunks of the input without storing the pixels : only the state of the decoder is updated.
+     * A QOI_OP_RUN longer than the remaining count is kept in the state for the next call.
+     * @apiNote decodePixels(State, byte[], int, int[], int, int) without output, by batches of at most 2^31 - 1 pixels
+     * @param state (State) - State of the decoder, updated by this call
+     * @param input (byte[]) - Stream of bytes to read from
+     * @param end (int) - Index in the input after the last chunk to decode
+     * @param count (long) - Number of pixels to skip
+     * @return (long) - Number of skipped pixels, less than count only if the input is exhausted
+     */
+    static long skipPixels(State state, byte[] input, int end, long count){
+        var skipped = 0L;
+        while (skipped < count){
+            var batch = (int) Math.min(count - skipped, Integer.MAX_VALUE);
+            var done = decodePixels(state, input, end, null, 0, batch);
+            skipped += done;
+            if (done < batch) break; // The input is exhausted
+        }
+        return skipped;
+    }
+
+    /**
+     * Decode a rectangle of the image of a "Quite Ok Image" file.
+     * The chunks before the rectangle are parsed without storing their pixels,
+     * only the columns of the rectangle are stored, and the parsing stops after its last row :
+     * the memory used is the size of the rectangle.
+     * @apiNote A range of rows is decodeRegion(content, 0, y, width, height)
+     * @param content (byte[]) - Content of the file to decode
+     * @param x (int) - Column of the left side of the rectangle
+     * @param y (int) - Row of the top side of the rectangle
+     * @param width (int) - Width of the rectangle
+     * @param height (int) - Height of the rectangle
+     * @return (Image) - The pixels of the rectangle, with the channels and the color space of the file
+     * @throws AssertionError if content is null or is not a valid "Quite Ok Image" file,
+     * or the rectangle is empty or not inside the image
+     */
+    public static Image decodeRegion(byte[] content, int x, int y, int width, int height){
+        return decodeRegion(content, null, x, y, width, height);
+    }
+
+    /**
+     * Decode a rectangle of the image of a "Quite Ok Image" file, starting from the last seek point before it.
+     * @apiNote Same result as decodeRegion(byte[], int, int, int, int), the chunks between the beginning
+     * of the file and the seek point are not parsed at all
+     * @param content (byte[]) - Content of the file to decode
+     * @param seekIndex (QOISeekIndex) - Seek points of the file (See QOISeekIndex::qoiFile), can be null
+     * @param x (int) - Column of the left side of the rectangle
+     * @param y (int) - Row of the top side of the rectangle
+     * @param width (int) - Width of the rectangle
+     * @param height (int) - Height of the rectangle
+     * @return (Image) - The pixels of the rectangle, with the channels and the color space of the file
+     * @throws AssertionError if content is null or is not a valid "Quite Ok Image" file,
+     * the seek points do not belong to this file, or the rectangle is empty or not inside the image
+     */
+    public static Image decodeRegion(byte[] content, QOISeekIndex seekIndex, int x, int y, int width, int height){
+        assert content != null;
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        assert seekIndex == null || seekIndex.length == content.length : "The seek points do not belong to this file";
+
+        int[] header = decodeHeader(ByteBuffer.wrap(content));
+        int imageWidth = header[0];
+        int imageHeight = header[1];
+        assert width > 0 && height > 0 && x >= 0 && y >= 0;
+        assert (long) x + width <= imageWidth && (long) y + height <= imageHeight : "The region is not inside the image";
+
+        var end = content.length - QOISpecification.QOI_EOF.length;
+        var index = QOIBufferPool.borrowInts(64);
+        var state = new State(QOISpecification.HEADER_SIZE, index);
+        var first = (long) y * imageWidth + x;
+        var current = 0L;
+        if (seekIndex != null){
+            // Last seek point before the first pixel of the region
+            var points = seekIndex.points;
+            var low = 0;
+            var high = points.length;
+            while (low < high){
+                var middle = (low + high) >>> 1;
+                if (points[middle].pixel() <= first) low = middle + 1;
+                else high = middle;
+            }
+            if (low > 0){
+                var point = points[low - 1];
+                state.position = point.offset();
+                state.previous = point.previous();
+                System.arraycopy(point.index(), 0, state.index, 0, 64);
+                current = point.pixel();
+            }
+        }
+        var skipped = skipPixels(state, content, end, first - current);
+        assert skipped == first - current : "The data does not contain enough pixels";
+        var region = new int[height][width];
+        for (int row = 0; row < height; ++row){
+            if (row > 0){ // Columns outside the region, between two of its rows
+                skipped = skipPixels(state, content, end, imageWidth - width);
+                assert skipped == imageWidth - width : "The data does not contain enough pixels";
+            }
+            var written = decodePixels(state, content, end, region[row], 0, width);
+            assert written == width : "The data does not contain enough pixels";
+        }
+        QOIBufferPool.release(index);
+        return Helper.generateImage(region, (byte) header[2], (byte) header[3]);
+    }
+
+    // ==================================================================================
+    // =============================== THUMBNAIL DECODING ===============================
+    // ==================================================================================
+
+    /**
+     * Decode a "Quite Ok Image" file straight to a smaller image.
+     * Each pixel of the thumbnail is the average of a box of pixels of the image (area averaging) :
+     * the rows of the image are decoded one by one and added to the sums of the current row of the thumbnail,
+     * so only one row of the image and one row of sums are kept in memory besides the thumbnail.
+     * The colors are weighted by the alpha channel, transparent pixels do not darken their neighbours,
+     * and a box of fully transparent pixels gives a transparent black pixel.
+     * @param content (byte[]) - Content of the file to decode
+     * @param width (int) - Width of the thumbnail, at most the width of the image
+     * @param height (int) - Height of the thumbnail, at most the height of the image
+     * @return (Image) - The thumbnail, with the channels and the color space of the file
+     * @throws AssertionError if content is null or is not a valid "Quite Ok Image" file,
+     * or the size of the thumbnail is not between 1 and the size of the image
+     */
+    public static Image decodeThumbnail(byte[] content, int width, int height){
+        assert content != null;
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        int[] header = decodeHeader(ByteBuffer.wrap(content));
+        int imageWidth = header[0];
+        int imageHeight = header[1];
+        assert width > 0 && height > 0 && width <= imageWidth && height <= imageHeight : "The thumbnail must be smaller than the image";
+
+        // The column tx of the thumbnail averages the columns bounds[tx] (included) to bounds[tx + 1] (excluded)
+        var bounds = new int[width + 1];
+        for (int tx = 0; tx <= width; ++tx){
+            bounds[tx] = (int) ((long) tx * imageWidth / width);
+        }
+        // Sums of alpha, red * alpha, green * alpha and blue * alpha for each column of the thumbnail
+        var sums = new long[4 * width];
+        var thumbnail = new int[height][];
+        var row = QOIBufferPool.borrowInts(imageWidth);
+        var index = QOIBufferPool.borrowInts(64);
+        var state = new State(QOISpecification.HEADER_SIZE, index);
+        var end = content.length - QOISpecification.QOI_EOF.length;
+        var ty = 0;
+        var rows = 0;
+        for (int y = 0; y < imageHeight; ++y){
+            var written = decodePixels(state, content, end, row, 0, imageWidth);
+            assert written == imageWidth : "The data does not contain enough pixels";
+            for (int tx = 0; tx < width; ++tx){
+                long a = 0, r = 0, g = 0, b = 0;
+                for (int x = bounds[tx]; x < bounds[tx + 1]; ++x){
+                    var pixel = row[x];
+                    var alpha = pixel >>> 24;
+                    a += alpha;
+                    r += ((pixel >> 16) & 0xFF) * alpha;
+                    g += ((pixel >> 8) & 0xFF) * alpha;
+                    b += (pixel & 0xFF) * alpha;
+                }
+                sums[4 * tx] += a;
+                sums[4 * tx + 1] += r;
+                sums[4 * tx + 2] += g;
+                sums[4 * tx + 3] += b;
+            }
+            ++rows;
+            // Last row of the image in the row ty of the thumbnail
+            if ((long) (ty + 1) * imageHeight / height == y + 1){
+                thumbnail[ty++] = average(sums, bounds, rows);
+                Arrays.fill(sums, 0);
+                rows = 0;
+            }
+        }
+        QOIBufferPool.release(index);
+        QOIBufferPool.release(row);
+        return Helper.generateImage(thumbnail, (byte) header[2], (byte) header[3]);
+    }
+
+    /**
+     * Compute a row of the thumbnail from the sums of its boxes
+     * @param sums (long[]) - Sums of alpha, red * alpha, green * alpha and blue * alpha of each box
+     * @param bounds (int[]) - Columns of the image where each box starts
+     * @param rows (int) - Number of rows of the image in the boxes
+     * @return (int[]) - ARGB pixels of the row, rounded to the nearest value
+     */
+    private static int[] average(long[] sums, int[] bounds, int rows){
+        var output = new int[bounds.length - 1];
+        for (int tx = 0; tx < output.length; ++tx){
+            var count = (long) (bounds[tx + 1] - bounds[tx]) * rows;
+            var a = sums[4 * tx];
+            if (a == 0) continue; // Fully transparent box
+            var alpha = (a + count / 2) / count;
+            var r = (sums[4 * tx + 1] + a / 2) / a;
+            var g = (sums[4 * tx + 2] + a / 2) / a;
+            var b = (sums[4 * tx + 3] + a / 2) / a;
+            output[tx] = (int) (alpha << 24 | r << 16 | g << 8 | b);
+        }
+        return output;
+    }
 }
\ No newline at end of file
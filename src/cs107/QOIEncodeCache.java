@@ -0,0 +1,277 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of "Quite Ok Image" files in front of the encoder, addressed by the content of the images.
+ * The key of an image is a 128 bits digest of its pixels, its size, its channels and its color space
+ * (two hashes of PixelHash with different seeds), so an image sent again costs at most one pass over its pixels.
+ * The files are kept in memory up to maxBytes bytes, the least recently used files are evicted first.
+ * With a spill directory, the evicted files are written on the disk (as plain ".qoi" files named by their digest)
+ * up to maxSpillBytes bytes, and read back when their image comes back.
+ * @apiNote The cache can be shared between threads : the files on the disk are accessed under a lock of their own,
+ * a disk access never blocks the lookups in memory. The arrays it returns are shared too : they must not be modified
+ */
+public final class QOIEncodeCache {
+
+    /**
+     * Counters of a cache
+     * @param hits (long) - Number of files found in memory
+     * @param diskHits (long) - Number of files read back from the spill directory
+     * @param misses (long) - Number of files encoded
+     * @param evictions (long) - Number of files evicted from memory
+     * @param spills (long) - Number of evicted files written in the spill directory
+     * @param bytes (long) - Number of bytes of the files in memory
+     * @param spilledBytes (long) - Number of bytes of the files in the spill directory
+     */
+    public record Stats(long hits, long diskHits, long misses, long evictions, long spills, long bytes, long spilledBytes){}
+
+    /**
+     * Digest of an image, the key of the cache
+     * @param high (long) - First hash, Helper.Image::hash64
+     * @param low (long) - Second hash
+     */
+    record Digest(long high, long low){
+
+        /**
+         * @return (String) - The 32 hexadecimal digits of the digest
+         */
+        String hex(){
+            return String.format("%016x%016x", high, low);
+        }
+    }
+
+    /**
+     * Seed of the second hash of a digest, the first one is Helper.Image::hash64
+     */
+    private static final long SEED = 0x71_6F_69_63_61_63_68_65L; // "qoicache"
+
+    private final long maxBytes;
+    private final Path spill;
+    private final long maxSpillBytes;
+    /** Files in memory, in access order, guarded by this */
+    private final LinkedHashMap<Digest, byte[]> files = new LinkedHashMap<>(16, 0.75f, true);
+    /** Number of bytes of the files in memory, guarded by this */
+    private long bytes = 0;
+    /**
+     * Guards the spill directory : the files on the disk are only read, written and deleted while holding it,
+     * never while holding this, so a disk access does not block the lookups in memory
+     */
+    private final Object spillLock = new Object();
+    /** Size of the files in the spill directory, in access order, guarded by spillLock */
+    private final LinkedHashMap<Digest, Integer> spilled = new LinkedHashMap<>(16, 0.75f, true);
+    /** Number of bytes of the files in the spill directory, guarded by spillLock */
+    private long spilledBytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+
+    /**
+     * Cache kept in memory only
+     * @param maxBytes (long) - Maximum number of bytes of the files kept in memory
+     * @throws AssertionError if maxBytes is negative
+     */
+    public QOIEncodeCache(long maxBytes){
+        this(maxBytes, null, 0);
+    }
+
+    /**
+     * Cache spilling the files evicted from memory in a directory
+     * @param maxBytes (long) - Maximum number of bytes of the files kept in memory
+     * @param spill (Path) - Directory where the evicted files are written, created if needed, null to drop them
+     * @param maxSpillBytes (long) - Maximum number of bytes of the files in the directory
+     * @throws AssertionError if one of the limits is negative
+     */
+    public QOIEncodeCache(long maxBytes, Path spill, long maxSpillBytes){
+        assert maxBytes >= 0 && maxSpillBytes >= 0;
+        this.maxBytes = maxBytes;
+        this.spill = spill;
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    // ==================================================================================
+    // ================================= CACHE METHODS ==================================
+    // ==================================================================================
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file of an image,
+     * encoded with QOIEncoder::qoiFilePacked unless the cache already holds the file of an image with the same content
+     * @param image (Helper.Image) - Image to encode
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image, shared with the cache
+     * @throws AssertionError if the image is null or too big to fit in an array
+     */
+    public byte[] qoiFile(Helper.Image image){
+        assert image != null;
+        var digest = digest(image);
+        var file = lookup(digest);
+        if (file != null){
+            hits.incrementAndGet();
+            return file;
+        }
+        file = read(digest);
+        if (file != null){
+            diskHits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            // Two threads may encode the same image at the same time, the first file is kept
+            file = QOIEncoder.qoiFilePacked(image);
+        }
+        spill(store(digest, file));
+        return file;
+    }
+
+    /**
+     * @return (Stats) - The counters of the cache
+     */
+    public Stats stats(){
+        long inMemory;
+        synchronized (this){
+            inMemory = bytes;
+        }
+        long onDisk;
+        synchronized (spillLock){
+            onDisk = spilledBytes;
+        }
+        return new Stats(hits.get(), diskHits.get(), misses.get(), evictions.get(), spills.get(), inMemory, onDisk);
+    }
+
+    /**
+     * Drop all the files, in memory and in the spill directory. The counters are kept
+     */
+    public void clear(){
+        synchronized (this){
+            files.clear();
+            bytes = 0;
+        }
+        synchronized (spillLock){
+            for (Digest digest : spilled.keySet()){
+                delete(digest);
+            }
+            spilled.clear();
+            spilledBytes = 0;
+        }
+    }
+
+    private synchronized byte[] lookup(Digest digest){
+        return files.get(digest);
+    }
+
+    /**
+     * Keep a file in memory, evicting the least recently used files until it fits.
+     * Nothing is written on the disk here
+     * @return (List of Map.Entry) - The evicted files, to give to spill once the lock is released
+     */
+    private synchronized List<Map.Entry<Digest, byte[]>> store(Digest digest, byte[] file){
+        if (files.containsKey(digest)) return List.of();
+        var evicted = new ArrayList<Map.Entry<Digest, byte[]>>();
+        if (file.length > maxBytes){
+            // Too big to be kept in memory
+            evicted.add(Map.entry(digest, file));
+        } else {
+            files.put(digest, file);
+            bytes += file.length;
+            Iterator<Map.Entry<Digest, byte[]>> entries = files.entrySet().iterator();
+            while (bytes > maxBytes){
+                var entry = entries.next();
+                entries.remove();
+                bytes -= entry.getValue().length;
+                evicted.add(Map.entry(entry.getKey(), entry.getValue()));
+            }
+        }
+        evictions.addAndGet(evicted.size());
+        return evicted;
+    }
+
+    /**
+     * Read a file of the spill directory
+     * @return (byte[]) - The file, null if it is not in the directory or cannot be read
+     */
+    private byte[] read(Digest digest){
+        if (spill == null) return null;
+        synchronized (spillLock){
+            var size = spilled.get(digest);
+            if (size == null) return null;
+            try {
+                var file = Files.readAllBytes(pathOf(digest));
+                // The file stays in the directory : it is not written again when it is evicted
+                if (file.length == size) return file;
+            } catch (IOException ignored){
+                // The file is encoded again
+            }
+            spilled.remove(digest);
+            spilledBytes -= size;
+            return null;
+        }
+    }
+
+    /**
+     * Write evicted files in the spill directory, removing the least recently used files until they fit
+     */
+    private void spill(List<Map.Entry<Digest, byte[]>> evicted){
+        if (spill == null || evicted.isEmpty()) return;
+        synchronized (spillLock){
+            for (Map.Entry<Digest, byte[]> entry : evicted){
+                var digest = entry.getKey();
+                var file = entry.getValue();
+                if (file.length > maxSpillBytes || spilled.get(digest) != null) continue;
+                try {
+                    Files.createDirectories(spill);
+                    Files.write(pathOf(digest), file);
+                } catch (IOException ignored){
+                    // The file is dropped, like without spill directory
+                    continue;
+                }
+                spills.incrementAndGet();
+                spilled.put(digest, file.length);
+                spilledBytes += file.length;
+                Iterator<Map.Entry<Digest, Integer>> entries = spilled.entrySet().iterator();
+                while (spilledBytes > maxSpillBytes){
+                    var old = entries.next();
+                    entries.remove();
+                    spilledBytes -= old.getValue();
+                    delete(old.getKey());
+                }
+            }
+        }
+    }
+
+    private Path pathOf(Digest digest){
+        return spill.resolve(digest.hex() + ".qoi");
+    }
+
+    private void delete(Digest digest){
+        try {
+            Files.deleteIfExists(pathOf(digest));
+        } catch (IOException ignored){
+            // The file is not tracked anymore, it is only left on the disk
+        }
+    }
+
+    // ==================================================================================
+    // ================================ DIGEST METHODS ==================================
+    // ==================================================================================
+
+    /**
+     * Digest of the content of an image : two hashes of PixelHash with different seeds.
+     * The first one is Helper.Image::hash64, computed once per image and kept with it,
+     * so an image looked up again only costs the second hash
+     * @param image (Helper.Image) - The image
+     * @return (Digest) - The digest of the pixels, the size, the channels and the color space of the image
+     * @throws AssertionError if the image is null
+     */
+    static Digest digest(Helper.Image image){
+        assert image != null;
+        return new Digest(image.hash64(), PixelHash.hash64(image.data(), image.channels(), image.color_space(), SEED));
+    }
+
+}
@@ -1,6 +1,9 @@
 package cs107;
 
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * "Quite Ok Image" Encoder
@@ -29,12 +32,23 @@ public final class QOIEncoder {
      */
     public static byte[] qoiHeader(Helper.Image image){
         assert image != null;
-        assert image.color_space() == QOISpecification.sRGB || image.color_space() == QOISpecification.ALL; // Check if the color satifies the specification
-        assert image.channels() == QOISpecification.RGB || image.channels() == QOISpecification.RGBA; // Check if the number of channels satisfies the specification
-        var header = new byte[4];
-        header = ArrayUtils.concat(QOISpecification.QOI_MAGIC, ArrayUtils.fromInt(image.data()[0].length), ArrayUtils.fromInt(image.data().length), new byte[]{image.channels()}, new byte[]{(image.color_space())});
+        return qoiHeader(image.data()[0].length, image.data().length, image.channels(), image.color_space());
+    }
+
+    /**
+     * Generate a "Quite Ok Image" header using the following parameters
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @throws AssertionError if the colorspace or the number of channels is corrupted
+     * @return (byte[]) - Corresponding "Quite Ok Image" Header
+     */
+    public static byte[] qoiHeader(int width, int height, byte channels, byte colorSpace){
+        assert colorSpace == QOISpecification.sRGB || colorSpace == QOISpecification.ALL; // Check if the color satifies the specification
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA; // Check if the number of channels satisfies the specification
         // Concatenate the magic number, the width, the height, the number of channels and the color space as demanded per the specification
-        return header;
+        return ArrayUtils.concat(QOISpecification.QOI_MAGIC, ArrayUtils.fromInt(width), ArrayUtils.fromInt(height), new byte[]{channels}, new byte[]{colorSpace});
     }
 
     // ==================================================================================
@@ -247,4 +261,309 @@ public final class QOIEncoder {
         byte[] data = QOIEncoder.encodeData(ArrayUtils.imageToChannels(image.data())); // We encode the data of the image (pixels are beforehand converted to channels)
         return ArrayUtils.concat(header, data, QOISpecification.QOI_EOF); // We concatenate the header, the data and the EOF
     }
+
+    // ==================================================================================
+    // ============================ PACKED ENCODING METHODS =============================
+    // ==================================================================================
+
+    /**
+     * State of the encoder between two pixels.
+     * Pixels are packed as ARGB integers, the same format as Helper.Image::data
+     */
+    static final class State {
+        /** Hash table of the already seen pixels */
+        final int[] index;
+        /** Last pixel given to the encoder */
+        int previous = QOISpecification.START_PIXEL_ARGB;
+        /** Number of pixels equal to previous which are not written yet */
+        int run = 0;
+
+        State(){
+            this(new int[64]);
+        }
+
+        /**
+         * @param index (int[]) - Hash table to use, at least 64 integers, cleared by the constructor
+         */
+        State(int[] index){
+            assert index.length >= 64;
+            Arrays.fill(index, 0, 64, 0);
+            this.index = index;
+        }
+    }
+
+    /**
+     * Encode one packed pixel and write the resulting chunk (if any) in the output
+     * @apiNote Same schemas and same priorities as encodeData(byte[][])
+     * @param state (State) - State of the encoder, updated by this call
+     * @param pixel (int) - Pixel to encode, packed as ARGB
+     * @param output (byte[]) - Array where to write the chunks, needs at least 6 free bytes
+     * (a pending QOI_OP_RUN and a QOI_OP_RGBA)
+     * @param position (int) - Index in output to start writing from
+     * @return (int) - Index in output after the written chunks
+     */
+    static int encodePixel(State state, int pixel, byte[] output, int position){
+        var previous = state.previous;
+        //Run
+        if (pixel == previous){
+            if (++state.run == 62){ // A run can only hold 62 pixels
+                output[position++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | 61);
+                state.run = 0;
+            }
+            return position;
+        }
+        position = flushRun(state, output, position);
+        state.previous = pixel;
+        //Hashing table
+        var hash = QOISpecification.hash(pixel);
+        if (state.index[hash] == pixel){
+            output[position++] = (byte) (QOISpecification.QOI_OP_INDEX_TAG | hash);
+            return position;
+        }
+        state.index[hash] = pixel;
+        if ((pixel ^ previous) >>> 24 == 0){ // Same alpha value
+            // The subtraction of the packed values is truncated to the channel, exactly like the byte[] version
+            byte dr = (byte) ((pixel >> 16) - (previous >> 16));
+            byte dg = (byte) ((pixel >> 8) - (previous >> 8));
+            byte db = (byte) (pixel - previous);
+            //Diff
+            if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1){
+                output[position++] = (byte) (QOISpecification.QOI_OP_DIFF_TAG | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                return position;
+            }
+            //Luma
+            if (dg > -33 && dg < 32 && dr - dg > -9 && dr - dg < 8 && db - dg > -9 && db - dg < 8){
+                output[position++] = (byte) (QOISpecification.QOI_OP_LUMA_TAG | (dg + 32));
+                output[position++] = (byte) ((dr - dg + 8) << 4 | (db - dg + 8));
+                return position;
+            }
+            //RGB
+            output[position++] = QOISpecification.QOI_OP_RGB_TAG;
+            output[position++] = (byte) (pixel >> 16);
+            output[position++] = (byte) (pixel >> 8);
+            output[position++] = (byte) pixel;
+            return position;
+        }
+        //RGBA
+        output[position++] = QOISpecification.QOI_OP_RGBA_TAG;
+        output[position++] = (byte) (pixel >> 16);
+        output[position++] = (byte) (pixel >> 8);
+        output[position++] = (byte) pixel;
+        output[position++] = (byte) (pixel >>> 24);
+        return position;
+    }
+
+    /**
+     * Write the pending run of the encoder (if any) in the output
+     * @param state (State) - State of the encoder, its run is reset by this call
+     * @param output (byte[]) - Array where to write the chunk, needs at least 1 free byte
+     * @param position (int) - Index in output to start writing from
+     * @return (int) - Index in output after the written chunk
+     */
+    static int flushRun(State state, byte[] output, int position){
+        if (state.run > 0){
+            output[position++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | (state.run - 1));
+            state.run = 0;
+        }
+        return position;
+    }
+
+    /**
+     * Encode the given ARGB pixels using the "Quite Ok Image" Protocol
+     * without converting them to channels first
+     * @param image (int[][]) - ARGB stored pixels, as in Helper.Image::data
+     * @param output (byte[]) - Array where to write the encoded data
+     * @param position (int) - Index in output to start writing from
+     * @return (int) - Index in output after the encoded data
+     * @throws AssertionError if the image is null or output is too small to hold 5 bytes per pixel
+     */
+    public static int encodeData(int[][] image, byte[] output, int position){
+        assert image != null && output != null;
+        assert position >= 0 && output.length - position >= 5L * image.length * (image.length == 0 ? 0 : image[0].length);
+        var index = QOIBufferPool.borrowInts(64);
+        var state = new State(index);
+        for (int[] row : image){
+            assert row != null;
+            for (int pixel : row){
+                position = encodePixel(state, pixel, output, position);
+            }
+        }
+        QOIBufferPool.release(index);
+        return flushRun(state, output, position);
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file.
+     * Unlike qoiFile, the pixels are hashed and compared as packed integers
+     * and written in one pre-sized array, nothing is allocated per pixel.
+     * @apiNote The result is byte to byte identical to qoiFile
+     * @param image (Helper.Image) - Image to encode
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if the image is null or too big to fit in an array
+     */
+    public static byte[] qoiFilePacked(Helper.Image image){
+        assert image != null;
+        byte[] header = QOIEncoder.qoiHeader(image);
+        // Worst case : every pixel is written with the QOI_OP_RGBA schema
+        long size = header.length + 5L * image.data().length * image.data()[0].length + QOISpecification.QOI_EOF.length;
+        assert size <= Integer.MAX_VALUE - 8 : "The image is too big to be encoded in an array";
+        byte[] output = QOIBufferPool.borrowBytes((int) size);
+        System.arraycopy(header, 0, output, 0, header.length);
+        int position = encodeData(image.data(), output, header.length);
+        System.arraycopy(QOISpecification.QOI_EOF, 0, output, position, QOISpecification.QOI_EOF.length);
+        var file = Arrays.copyOf(output, position + QOISpecification.QOI_EOF.length);
+        QOIBufferPool.release(output);
+        return file;
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file of an image decoded by ImageIO.
+     * The pixels of TYPE_INT_ARGB, TYPE_INT_RGB, TYPE_4BYTE_ABGR and TYPE_3BYTE_BGR images are read
+     * row by row from their DataBuffer (See Helper::readRaster), without creating a Helper.Image.
+     * The other types are converted first.
+     * @apiNote The result is byte to byte identical to qoiFile(Helper.fromBufferedImage(image))
+     * @param image (BufferedImage) - Image to encode
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if the image is null or too big to fit in an array
+     */
+    public static byte[] qoiFile(BufferedImage image){
+        assert image != null;
+        var width = image.getWidth();
+        var height = image.getHeight();
+        if (!Helper.canReadRaster(image)){
+            return qoiFilePacked(Helper.fromBufferedImage(image));
+        }
+
+        var channels = image.getColorModel().hasAlpha() ? QOISpecification.RGBA : QOISpecification.RGB;
+        byte[] header = qoiHeader(width, height, channels, QOISpecification.sRGB);
+        // Worst case : every pixel is written with the QOI_OP_RGBA schema
+        long size = header.length + 5L * width * height + QOISpecification.QOI_EOF.length;
+        assert size <= Integer.MAX_VALUE - 8 : "The image is too big to be encoded in an array";
+        byte[] output = QOIBufferPool.borrowBytes((int) size);
+        System.arraycopy(header, 0, output, 0, header.length);
+        int position = header.length;
+        var index = QOIBufferPool.borrowInts(64);
+        var state = new State(index);
+        // One row of the image at a time, the image is never copied as a whole
+        var row = QOIBufferPool.borrowInts(width);
+        for (int y = 0; y < height; ++y){
+            Helper.readRaster(image, y, row);
+            for (int x = 0; x < width; ++x){
+                position = encodePixel(state, row[x], output, position);
+            }
+        }
+        QOIBufferPool.release(row);
+        position = flushRun(state, output, position);
+        System.arraycopy(QOISpecification.QOI_EOF, 0, output, position, QOISpecification.QOI_EOF.length);
+        var file = Arrays.copyOf(output, position + QOISpecification.QOI_EOF.length);
+        QOIBufferPool.release(index);
+        QOIBufferPool.release(output);
+        return file;
+    }
+
+    // ==================================================================================
+    // ============================ BYTE BUFFER ENCODING METHODS ========================
+    // ==================================================================================
+
+    /**
+     * Size of the array where encodeInto stages the chunks before copying them in the buffer
+     */
+    private static final int SCRATCH_SIZE = 1 << 16;
+
+    /**
+     * Upper bound of the size of the "Quite Ok Image" file of an image.
+     * In the worst case every pixel is written with the QOI_OP_RGB schema (RGB images)
+     * or with the QOI_OP_RGBA schema (RGBA images)
+     * @apiNote The pixels of an RGB image are expected to be opaque
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @return (long) - Maximum number of bytes written by encodeInto for such an image
+     * @throws AssertionError if the size is negative or the number of channels is not RGB or RGBA
+     */
+    public static long maxEncodedSize(int width, int height, byte channels){
+        assert width >= 0 && height >= 0;
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+        return QOISpecification.HEADER_SIZE + (long) width * height * (channels + 1) + QOISpecification.QOI_EOF.length;
+    }
+
+    /**
+     * Write the "Quite Ok Image" file of an image in a buffer owned by the caller, heap or direct.
+     * The bytes are written from the position of the buffer, which is moved after the last byte like ByteBuffer::put.
+     * The chunks are staged in a small array, the size of the file is never allocated.
+     * @apiNote The bytes are identical to qoiFile(image). A buffer with
+     * maxEncodedSize(width, height, channels) remaining bytes is always big enough
+     * @param image (Helper.Image) - Image to encode
+     * @param buffer (ByteBuffer) - Buffer where to write the file
+     * @return (int) - Number of bytes written in the buffer
+     * @throws AssertionError if the image or the buffer is null
+     * @throws java.nio.BufferOverflowException if the file does not fit in the remaining bytes of the buffer,
+     * the bytes written before are left in the buffer
+     * @throws java.nio.ReadOnlyBufferException if the buffer is read only
+     */
+    public static int encodeInto(Helper.Image image, ByteBuffer buffer){
+        assert image != null && buffer != null;
+        var start = buffer.position();
+        buffer.put(qoiHeader(image));
+        var scratch = QOIBufferPool.borrowBytes(SCRATCH_SIZE);
+        var index = QOIBufferPool.borrowInts(64);
+        var state = new State(index);
+        var position = 0;
+        for (int[] row : image.data()){
+            position = encodeInto(state, row, 0, row.length, scratch, position, buffer);
+        }
+        position = flushRun(state, scratch, position);
+        buffer.put(scratch, 0, position);
+        buffer.put(QOISpecification.QOI_EOF);
+        QOIBufferPool.release(index);
+        QOIBufferPool.release(scratch);
+        return buffer.position() - start;
+    }
+
+    /**
+     * Same as encodeInto(Helper.Image, ByteBuffer) for pixels stored in a flat buffer
+     * @param pixels (int[]) - ARGB stored pixels, the pixel (x, y) is stored at y * width + x
+     * (See QOIDecoder::decodeData(byte[], int, int, int, int, int[]))
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @param buffer (ByteBuffer) - Buffer where to write the file
+     * @return (int) - Number of bytes written in the buffer
+     * @throws AssertionError if pixels or the buffer is null, or pixels is smaller than the image
+     * @throws java.nio.BufferOverflowException if the file does not fit in the remaining bytes of the buffer,
+     * the bytes written before are left in the buffer
+     * @throws java.nio.ReadOnlyBufferException if the buffer is read only
+     */
+    public static int encodeInto(int[] pixels, int width, int height, byte channels, byte colorSpace, ByteBuffer buffer){
+        assert pixels != null && buffer != null;
+        assert width > 0 && height > 0 && pixels.length >= (long) width * height;
+        var start = buffer.position();
+        buffer.put(qoiHeader(width, height, channels, colorSpace));
+        var scratch = QOIBufferPool.borrowBytes(SCRATCH_SIZE);
+        var index = QOIBufferPool.borrowInts(64);
+        var state = new State(index);
+        var position = encodeInto(state, pixels, 0, width * height, scratch, 0, buffer);
+        position = flushRun(state, scratch, position);
+        buffer.put(scratch, 0, position);
+        buffer.put(QOISpecification.QOI_EOF);
+        QOIBufferPool.release(index);
+        QOIBufferPool.release(scratch);
+        return buffer.position() - start;
+    }
+
+    /**
+     * Encode pixels in the scratch array, and move its content to the buffer each time it is almost full
+     * @return (int) - Index in scratch after the chunks which are not moved yet
+     */
+    private static int encodeInto(State state, int[] pixels, int from, int to, byte[] scratch, int position, ByteBuffer buffer){
+        for (int i = from; i < to; ++i){
+            position = encodePixel(state, pixels[i], scratch, position);
+            if (position > SCRATCH_SIZE - 6){
+                buffer.put(scratch, 0, position);
+                position = 0;
+            }
+        }
+        return position;
+    }
 }
\ No newline at end of file
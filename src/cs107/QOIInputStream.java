@@ -0,0 +1,206 @@
+package cs107;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Streaming "Quite Ok Image" decoder.
+ * The file is read through a small internal buffer and decoded row by row (or by batches of pixels),
+ * the first row is available as soon as its chunks have been read.
+ * Only the decoder state, the I/O buffer and one row are kept in memory, whatever the size of the image.
+ */
+public final class QOIInputStream implements Closeable {
+
+    /**
+     * Size of the internal I/O buffer
+     */
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    /**
+     * Receives the decoded rows of an image
+     */
+    @FunctionalInterface
+    public interface RowConsumer {
+        /**
+         * Called once per row, from top to bottom
+         * @param y (int) - Index of the row
+         * @param row (int[]) - ARGB stored pixels of the row, the array is reused for the next row
+         */
+        void accept(int y, int[] row);
+    }
+
+    private final InputStream input;
+    private final int width;
+    private final int height;
+    private final byte channels;
+    private final byte colorSpace;
+    private final byte[] buffer = QOIBufferPool.borrowBytes(BUFFER_SIZE);
+    private final QOIDecoder.State state = new QOIDecoder.State(0, QOIBufferPool.borrowInts(64));
+    private int limit = 0;
+    private boolean exhausted = false;
+    private boolean closed = false;
+    private final long size;
+    /** Number of pixels already decoded */
+    private long decoded = 0;
+
+    /**
+     * Create a new decoder and read the "Quite Ok Image" header
+     * @param input (InputStream) - Stream to read the file from, closed with this stream
+     * @throws IOException if the header cannot be read
+     * @throws AssertionError if input is null or the header is invalid (See QOIDecoder::decodeHeader)
+     */
+    public QOIInputStream(InputStream input) throws IOException {
+        assert input != null;
+        this.input = input;
+        var header = input.readNBytes(QOISpecification.HEADER_SIZE);
+        if (header.length != QOISpecification.HEADER_SIZE){
+            throw new IOException("The stream ends before the end of the header");
+        }
+        var decoded = QOIDecoder.decodeHeader(header);
+        width = decoded[0];
+        height = decoded[1];
+        channels = (byte) decoded[2];
+        colorSpace = (byte) decoded[3];
+        size = (long) width * height;
+    }
+
+    /**
+     * @return (int) - Width of the image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (byte) - Number of channels of the image
+     */
+    public byte channels(){
+        return channels;
+    }
+
+    /**
+     * @return (byte) - Color space of the image
+     */
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    /**
+     * Decode the next row of the image.
+     * The QOI_EOF is checked as soon as the last row is decoded.
+     * @param output (int[]) - Array where to store the ARGB pixels of the row
+     * @return (boolean) - true if a row was decoded, false if all the rows were already decoded
+     * @throws IOException if the stream cannot be read, ends too early or does not end with QOI_EOF
+     * @throws AssertionError if output is null or smaller than the width of the image
+     */
+    public boolean readRow(int[] output) throws IOException {
+        assert output != null && output.length >= width;
+        if (decoded == size) return false;
+        assert decoded % width == 0 : "The current row is partially read";
+        decode(output, 0, width);
+        return true;
+    }
+
+    /**
+     * Decode the next pixels of the image, whatever the row they belong to.
+     * Unlike readRow, the rows can be longer than the array.
+     * The QOI_EOF is checked as soon as the last pixel is decoded.
+     * @param output (int[]) - Array where to store the ARGB pixels
+     * @param offset (int) - Index in output of the first pixel to store
+     * @param length (int) - Maximum number of pixels to decode
+     * @return (int) - Number of decoded pixels, less than length only at the end of the image
+     * @throws IOException if the stream cannot be read, ends too early or does not end with QOI_EOF
+     * @throws AssertionError if output is null or the bounds are invalid
+     */
+    public int readPixels(int[] output, int offset, int length) throws IOException {
+        assert output != null && offset >= 0 && length >= 0 && offset + length <= output.length;
+        var count = (int) Math.min(length, size - decoded);
+        if (count > 0){
+            decode(output, offset, offset + count);
+        }
+        return count;
+    }
+
+    /**
+     * Decode all the remaining rows of the image
+     * @param consumer (RowConsumer) - Receives each row as soon as it is decoded
+     * @throws IOException if the stream cannot be read, ends too early or does not end with QOI_EOF
+     * @throws AssertionError if consumer is null
+     */
+    public void forEachRow(RowConsumer consumer) throws IOException {
+        assert consumer != null;
+        var output = new int[width];
+        while (decoded < size){
+            var y = (int) (decoded / width);
+            readRow(output);
+            consumer.accept(y, output);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try (input){
+            QOIBufferPool.release(state.index);
+            QOIBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Decode pixels until the output range is full, and check the QOI_EOF after the last pixel
+     */
+    private void decode(int[] output, int from, int to) throws IOException {
+        var written = from;
+        while (true){
+            // A chunk is at most 5 bytes long, only decode the chunks fully present in the buffer
+            var end = exhausted ? limit : limit - 4;
+            written = QOIDecoder.decodePixels(state, buffer, end, output, written, to);
+            if (written == to) break;
+            if (exhausted) throw new IOException("The stream ends before the last pixel");
+            refill();
+        }
+        decoded += to - from;
+        if (decoded == size){
+            checkEndOfFile();
+        }
+    }
+
+    /**
+     * Move the unread bytes at the beginning of the buffer and fill the rest from the stream
+     */
+    private void refill() throws IOException {
+        var remaining = limit - state.position;
+        System.arraycopy(buffer, state.position, buffer, 0, remaining);
+        state.position = 0;
+        limit = remaining;
+        var read = input.read(buffer, limit, BUFFER_SIZE - limit);
+        if (read < 0){
+            exhausted = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    private void checkEndOfFile() throws IOException {
+        while (limit - state.position < QOISpecification.QOI_EOF.length && !exhausted){
+            refill();
+        }
+        var start = state.position;
+        if (limit - start < QOISpecification.QOI_EOF.length
+                || !Arrays.equals(buffer, start, start + QOISpecification.QOI_EOF.length, QOISpecification.QOI_EOF, 0, QOISpecification.QOI_EOF.length)){
+            throw new IOException("The data does not end with QOI_EOF");
+        }
+        state.position += QOISpecification.QOI_EOF.length;
+    }
+
+}
@@ -0,0 +1,132 @@
+package cs107;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming "Quite Ok Image" encoder.
+ * The header is written as soon as the stream is created, the pixels are then
+ * given row by row (or by batches) and encoded on the fly. The QOI_EOF is written
+ * when the stream is closed.
+ * Only the encoder state and an I/O buffer are kept in memory, whatever the size of the image.
+ * @apiNote The bytes written are identical to QOIEncoder::qoiFile
+ */
+public final class QOIOutputStream implements Closeable, Flushable {
+
+    /**
+     * Size of the internal I/O buffer
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Maximum number of bytes written by QOIEncoder::encodePixel : a pending QOI_OP_RUN and a QOI_OP_RGBA
+     */
+    private static final int MAX_PIXEL_SIZE = 1 + 5;
+
+    private final OutputStream output;
+    private final int width;
+    private final long size;
+    private final QOIEncoder.State state = new QOIEncoder.State(QOIBufferPool.borrowInts(64));
+    private final byte[] buffer = QOIBufferPool.borrowBytes(BUFFER_SIZE);
+    private int position = 0;
+    private long written = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a new encoder and write the "Quite Ok Image" header
+     * @param output (OutputStream) - Stream where to write the file, closed with this stream
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @throws IOException if the header cannot be written
+     * @throws AssertionError if output is null, the size, the channels or the color space are invalid
+     */
+    public QOIOutputStream(OutputStream output, int width, int height, byte channels, byte colorSpace) throws IOException {
+        assert output != null;
+        assert width > 0 && height > 0;
+        this.output = output;
+        this.width = width;
+        this.size = (long) width * height;
+        var header = QOIEncoder.qoiHeader(width, height, channels, colorSpace);
+        System.arraycopy(header, 0, buffer, 0, header.length);
+        position = header.length;
+    }
+
+    /**
+     * Encode the next row of the image
+     * @param row (int[]) - ARGB stored pixels, as in Helper.Image::data
+     * @throws IOException if the encoded data cannot be written
+     * @throws AssertionError if the row is null, does not have the width of the image
+     * or if the image is already complete
+     */
+    public void writeRow(int[] row) throws IOException {
+        assert row != null && row.length == width : "The row does not have the width of the image";
+        writePixels(row, 0, row.length);
+    }
+
+    /**
+     * Encode the next pixels of the image
+     * @param pixels (int[]) - ARGB stored pixels
+     * @param offset (int) - Index of the first pixel to encode
+     * @param length (int) - Number of pixels to encode
+     * @throws IOException if the encoded data cannot be written
+     * @throws AssertionError if pixels is null, the bounds are invalid,
+     * the stream is closed or if there are more pixels than in the image
+     */
+    public void writePixels(int[] pixels, int offset, int length) throws IOException {
+        assert !closed : "The stream is closed";
+        assert pixels != null && offset >= 0 && length >= 0 && offset + length <= pixels.length;
+        assert written + length <= size : "There are more pixels than in the image";
+        for (int i = offset; i < offset + length; ++i){
+            if (position > BUFFER_SIZE - MAX_PIXEL_SIZE){
+                drain();
+            }
+            position = QOIEncoder.encodePixel(state, pixels[i], buffer, position);
+        }
+        written += length;
+    }
+
+    /**
+     * Write the already encoded data to the underlying stream.
+     * The pending QOI_OP_RUN (if any) stays in the encoder.
+     * @throws IOException if the data cannot be written
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+        output.flush();
+    }
+
+    /**
+     * Write the pending QOI_OP_RUN and the QOI_EOF, then close the underlying stream
+     * @throws IOException if the data cannot be written
+     * @throws AssertionError if some pixels of the image are missing
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try (output){
+            assert written == size : "Only " + written + " of the " + size + " pixels have been written";
+            if (position > BUFFER_SIZE - 1 - QOISpecification.QOI_EOF.length){
+                drain();
+            }
+            position = QOIEncoder.flushRun(state, buffer, position);
+            System.arraycopy(QOISpecification.QOI_EOF, 0, buffer, position, QOISpecification.QOI_EOF.length);
+            position += QOISpecification.QOI_EOF.length;
+            drain();
+        } finally {
+            QOIBufferPool.release(state.index);
+            QOIBufferPool.release(buffer);
+        }
+    }
+
+    private void drain() throws IOException {
+        output.write(buffer, 0, position);
+        position = 0;
+    }
+
+}
@@ -0,0 +1,194 @@
+package cs107;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+
+/**
+ * Parallel "Quite Ok Image" encoder.
+ * The image is cut in strips of consecutive pixels which are encoded concurrently.
+ * The state of the encoder at the beginning of a strip is rebuilt from the previous strips :
+ * <ul>
+ *     <li>the previous pixel is the last pixel of the previous strip</li>
+ *     <li>each slot of the hash table holds the last pixel with this hash, except the pixels
+ *     of the first run of START_PIXEL which are never inserted</li>
+ *     <li>the strips start on a pixel different from its predecessor, so no run is pending :
+ *     the run at the end of a strip is written by the strip itself</li>
+ * </ul>
+ * @apiNote The result is byte to byte identical to QOIEncoder::qoiFile
+ */
+public final class QOIParallelEncoder {
+
+    /**
+     * Minimum number of pixels in a strip, smaller strips cost more to schedule than to encode
+     */
+    private static final int MIN_STRIP_SIZE = 1 << 16;
+
+    /**
+     * Number of strips per worker thread, to balance the load between the workers
+     */
+    private static final int STRIPS_PER_THREAD = 4;
+
+    // Hide default constructor
+    private QOIParallelEncoder(){}
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file using the common pool
+     * @param image (Helper.Image) - Image to encode
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if the image is null or too big to fit in an array
+     */
+    public static byte[] qoiFile(Helper.Image image){
+        return qoiFile(image, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file
+     * @param image (Helper.Image) - Image to encode
+     * @param pool (ForkJoinPool) - Pool where the strips are encoded
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if one of the parameters is null or if the image is too big to fit in an array
+     */
+    public static byte[] qoiFile(Helper.Image image, ForkJoinPool pool){
+        return qoiFile(image, pool, MIN_STRIP_SIZE);
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file
+     * @param image (Helper.Image) - Image to encode
+     * @param pool (ForkJoinPool) - Pool where the strips are encoded
+     * @param minStripSize (int) - Minimum number of pixels in a strip
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     */
+    static byte[] qoiFile(Helper.Image image, ForkJoinPool pool, int minStripSize){
+        assert image != null && pool != null;
+        assert minStripSize > 0;
+        var data = image.data();
+        var width = data[0].length;
+        var size = (long) width * data.length;
+        assert size <= Integer.MAX_VALUE : "The image is too big to be encoded in an array";
+
+        var bounds = strips((int) size, Math.max(1, pool.getParallelism() * STRIPS_PER_THREAD), minStripSize, data, width);
+        var strips = bounds.length - 1;
+
+        // Last pixel of each slot of the hash table in each strip
+        var last = new int[strips][64];
+        var found = new long[strips];
+        forEach(pool, strips, k -> found[k] = lastPixels(data, width, bounds[k], bounds[k + 1], k == 0, last[k]));
+
+        // Hash table at the beginning of each strip
+        var indexes = new int[strips][];
+        indexes[0] = new int[64];
+        for (int k = 1; k < strips; ++k){
+            indexes[k] = indexes[k - 1].clone();
+            for (int slot = 0; slot < 64; ++slot){
+                if ((found[k - 1] & 1L << slot) != 0) indexes[k][slot] = last[k - 1][slot];
+            }
+        }
+
+        var encoded = new byte[strips][];
+        forEach(pool, strips, k -> encoded[k] = encodeStrip(data, width, bounds[k], bounds[k + 1], indexes[k]));
+
+        var header = QOIEncoder.qoiHeader(image);
+        long length = header.length + QOISpecification.QOI_EOF.length;
+        for (byte[] strip : encoded) length += strip.length;
+        assert length <= Integer.MAX_VALUE - 8 : "The image is too big to be encoded in an array";
+        var output = new byte[(int) length];
+        System.arraycopy(header, 0, output, 0, header.length);
+        var position = header.length;
+        for (byte[] strip : encoded){
+            System.arraycopy(strip, 0, output, position, strip.length);
+            position += strip.length;
+        }
+        System.arraycopy(QOISpecification.QOI_EOF, 0, output, position, QOISpecification.QOI_EOF.length);
+        return output;
+    }
+
+    /**
+     * Cut the image in strips starting on a pixel different from its predecessor
+     * @return (int[]) - Index of the first pixel of each strip, followed by the number of pixels
+     */
+    private static int[] strips(int size, int count, int minStripSize, int[][] data, int width){
+        count = Math.max(1, Math.min(count, size / minStripSize));
+        var bounds = new int[count + 1];
+        var strips = 1;
+        for (int k = 1; k < count; ++k){
+            var bound = (int) ((long) k * size / count);
+            var next = (int) ((long) (k + 1) * size / count);
+            while (bound < next && pixel(data, width, bound) == pixel(data, width, bound - 1)) ++bound;
+            if (bound < next) bounds[strips++] = bound; // Otherwise this strip is a single run, merged with the previous one
+        }
+        bounds[strips] = size;
+        return Arrays.copyOf(bounds, strips + 1);
+    }
+
+    /**
+     * Find the last pixel of each slot of the hash table in a strip
+     * @param last (int[]) - Array where to store the last pixel of each slot
+     * @return (long) - Bit mask of the slots found in the strip
+     */
+    private static long lastPixels(int[][] data, int width, int from, int to, boolean first, int[] last){
+        if (first){ // The first run of START_PIXEL is never inserted in the hash table
+            while (from < to && pixel(data, width, from) == QOISpecification.START_PIXEL_ARGB) ++from;
+        }
+        var found = 0L;
+        for (int i = to - 1; i >= from && found != -1L; --i){
+            var pixel = pixel(data, width, i);
+            var slot = QOISpecification.hash(pixel);
+            if ((found & 1L << slot) == 0){
+                found |= 1L << slot;
+                last[slot] = pixel;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Encode the pixels of a strip, including its last run
+     * @param index (int[]) - Hash table at the beginning of the strip
+     * @return (byte[]) - Encoded strip
+     */
+    private static byte[] encodeStrip(int[][] data, int width, int from, int to, int[] index){
+        var state = new QOIEncoder.State();
+        System.arraycopy(index, 0, state.index, 0, index.length);
+        if (from > 0) state.previous = pixel(data, width, from - 1);
+        // Worst case : every pixel is written with the QOI_OP_RGBA schema
+        var worst = 5L * (to - from) + 1;
+        assert worst <= Integer.MAX_VALUE - 8 : "The strip is too big to be encoded in an array";
+        var output = new byte[(int) worst];
+        var position = 0;
+        var y = from / width;
+        var x = from % width;
+        for (int i = from; i < to; ++i){
+            position = QOIEncoder.encodePixel(state, data[y][x], output, position);
+            if (++x == width){
+                x = 0;
+                ++y;
+            }
+        }
+        position = QOIEncoder.flushRun(state, output, position);
+        return Arrays.copyOf(output, position);
+    }
+
+    private static int pixel(int[][] data, int width, int i){
+        return data[i / width][i % width];
+    }
+
+    /**
+     * Run the action for each strip in the pool and wait for all of them
+     * @param pool (ForkJoinPool) - Pool where the actions run
+     * @param strips (int) - Number of strips
+     * @param action (IntConsumer) - Action to run, receives the index of the strip
+     */
+    static void forEach(ForkJoinPool pool, int strips, IntConsumer action){
+        var tasks = new ArrayList<ForkJoinTask<?>>(strips);
+        for (int k = 0; k < strips; ++k){
+            var strip = k;
+            tasks.add(ForkJoinTask.adapt(() -> action.accept(strip)));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+    }
+
+}
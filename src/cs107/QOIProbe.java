@@ -0,0 +1,144 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * Reads the metadata of "Quite Ok Image" files without reading their content :
+ * only the HEADER_SIZE bytes of the header are read, with one positional read.
+ */
+public final class QOIProbe {
+
+    /**
+     * Metadata of a "Quite Ok Image" file
+     * @param path (Path) - Path of the file
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @param fileSize (long) - Size of the file in bytes
+     */
+    public record Header(Path path, int width, int height, byte channels, byte colorSpace, long fileSize){
+
+        /**
+         * @return (long) - Number of pixels of the image
+         */
+        public long pixels(){
+            return (long) width * height;
+        }
+    }
+
+    /**
+     * Result of the scan of a directory
+     * @param headers (List of Header) - Metadata of the valid files, sorted by path
+     * @param failures (List of Path) - Files which cannot be read or are not valid "Quite Ok Image" files, sorted
+     */
+    public record Scan(List<Header> headers, List<Path> failures){}
+
+    /**
+     * Number of batches of files given to each thread of the pool during a scan
+     */
+    private static final int BATCHES_PER_THREAD = 4;
+
+    // Hide default constructor
+    private QOIProbe(){}
+
+    /**
+     * Read the header of a file
+     * @param path (Path) - Path of the file
+     * @return (Header) - Metadata of the file
+     * @throws IOException if the file cannot be read, is too small to be a "Quite Ok Image" file
+     * or its header is not valid
+     * @throws AssertionError if path is null
+     */
+    public static Header probe(Path path) throws IOException {
+        assert path != null;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)){
+            var size = channel.size();
+            if (size < QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length){
+                throw new IOException("The file is too small : " + path);
+            }
+            var header = ByteBuffer.allocate(QOISpecification.HEADER_SIZE);
+            while (header.hasRemaining()){
+                if (channel.read(header, header.position()) < 0){
+                    throw new IOException("The file ends before the end of the header : " + path);
+                }
+            }
+            var content = header.array();
+            if (!Arrays.equals(content, 0, 4, QOISpecification.QOI_MAGIC, 0, 4)){
+                throw new IOException("Magic number is not correct : " + path);
+            }
+            var width = header.getInt(4); // Big endian, like the header
+            var height = header.getInt(8);
+            var channels = content[12];
+            var colorSpace = content[13];
+            if (width <= 0 || height <= 0
+                    || (channels != QOISpecification.RGB && channels != QOISpecification.RGBA)
+                    || (colorSpace != QOISpecification.sRGB && colorSpace != QOISpecification.ALL)){
+                throw new IOException("The header is not valid : " + path);
+            }
+            return new Header(path, width, height, channels, colorSpace, size);
+        }
+    }
+
+    /**
+     * Read the headers of all the ".qoi" files of a directory (not recursively), in the common pool
+     * @param directory (Path) - Directory to scan
+     * @return (Scan) - Metadata of the files and files which cannot be probed
+     * @throws IOException if the directory cannot be listed
+     * @throws AssertionError if directory is null
+     */
+    public static Scan probeDirectory(Path directory) throws IOException {
+        return probeDirectory(directory, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Read the headers of all the ".qoi" files of a directory (not recursively).
+     * The files are split in batches probed concurrently in the pool
+     * @param directory (Path) - Directory to scan
+     * @param pool (ForkJoinPool) - Pool where the files are probed
+     * @return (Scan) - Metadata of the files and files which cannot be probed
+     * @throws IOException if the directory cannot be listed
+     * @throws AssertionError if directory or pool is null
+     */
+    public static Scan probeDirectory(Path directory, ForkJoinPool pool) throws IOException {
+        assert directory != null && pool != null;
+        Path[] files;
+        try (Stream<Path> list = Files.list(directory)){
+            files = list.filter(path -> path.getFileName().toString().endsWith(".qoi"))
+                    .filter(Files::isRegularFile)
+                    .sorted()
+                    .toArray(Path[]::new);
+        }
+        var headers = new Header[files.length];
+        var batches = Math.max(1, Math.min(files.length, pool.getParallelism() * BATCHES_PER_THREAD));
+        QOIParallelEncoder.forEach(pool, batches, batch -> {
+            var from = (int) ((long) files.length * batch / batches);
+            var to = (int) ((long) files.length * (batch + 1) / batches);
+            for (int i = from; i < to; ++i){
+                try {
+                    headers[i] = probe(files[i]);
+                } catch (IOException ignored){
+                    // Reported in the failures, the scan goes on
+                }
+            }
+        });
+        var valid = new ArrayList<Header>(files.length);
+        var failures = new ArrayList<Path>();
+        for (int i = 0; i < files.length; ++i){
+            if (headers[i] != null) valid.add(headers[i]);
+            else failures.add(files[i]);
+        }
+        return new Scan(List.copyOf(valid), List.copyOf(failures));
+    }
+
+}
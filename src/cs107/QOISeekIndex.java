@@ -0,0 +1,156 @@
+package cs107;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Seek points of a "Quite Ok Image" file, stored in a sidecar file next to it.
+ * A seek point holds the state of the decoder before a given pixel : the offset of the next chunk,
+ * the previous pixel and the hash table. The file can then be decoded from any seek point,
+ * which allows decoding the segments between two seek points concurrently
+ * (See QOIDecoder::decodeQoiFile(byte[], QOISeekIndex, ForkJoinPool)).
+ * The "Quite Ok Image" file itself is not modified, any decoder can still read it.
+ * @apiNote The seek points are only placed where no QOI_OP_RUN is pending,
+ * so every segment starts on a new chunk
+ */
+public final class QOISeekIndex {
+
+    /**
+     * Magic Number of a seek index file
+     */
+    public static final byte[] MAGIC = new byte[]{'q', 'o', 'i', 'x'};
+
+    /**
+     * Size of a serialized seek point : offset, pixel, previous pixel and the hash table
+     */
+    private static final int POINT_SIZE = 4 + 4 + 4 + 64 * 4;
+
+    /**
+     * State of the decoder before a pixel
+     * @param offset (int) - Index in the file of the chunk of the pixel
+     * @param pixel (int) - Index of the pixel, in row major order
+     * @param previous (int) - Pixel before this one, packed as ARGB
+     * @param index (int[]) - Hash table of the decoder
+     */
+    record Point(int offset, int pixel, int previous, int[] index){}
+
+    /**
+     * Result of QOISeekIndex::qoiFile
+     * @param content (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @param index (QOISeekIndex) - Seek points of the file
+     */
+    public record Encoded(byte[] content, QOISeekIndex index){}
+
+    final int interval;
+    final int length;
+    final Point[] points;
+
+    private QOISeekIndex(int interval, int length, Point[] points){
+        this.interval = interval;
+        this.length = length;
+        this.points = points;
+    }
+
+    /**
+     * @return (int) - Minimum number of pixels between two seek points
+     */
+    public int interval(){
+        return interval;
+    }
+
+    /**
+     * @return (int) - Number of seek points, the beginning of the file is not counted
+     */
+    public int size(){
+        return points.length;
+    }
+
+    // ==================================================================================
+    // ================================ ENCODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Encode the image and record a seek point every interval pixels
+     * @param image (Helper.Image) - Image to encode
+     * @param interval (int) - Minimum number of pixels between two seek points
+     * @return (Encoded) - The "Quite Ok Image" file, identical to QOIEncoder::qoiFile, and its seek points
+     * @throws AssertionError if the image is null, too big to fit in an array or the interval is not positive
+     */
+    public static Encoded qoiFile(Helper.Image image, int interval){
+        assert image != null;
+        assert interval > 0;
+        var header = QOIEncoder.qoiHeader(image);
+        // Worst case : every pixel is written with the QOI_OP_RGBA schema
+        long size = header.length + 5L * image.data().length * image.data()[0].length + QOISpecification.QOI_EOF.length;
+        assert size <= Integer.MAX_VALUE - 8 : "The image is too big to be encoded in an array";
+        var output = new byte[(int) size];
+        System.arraycopy(header, 0, output, 0, header.length);
+        var position = header.length;
+
+        var state = new QOIEncoder.State();
+        var points = new ArrayList<Point>();
+        var pixel = 0;
+        var next = interval;
+        for (int[] row : image.data()){
+            for (int argb : row){
+                if (pixel >= next && state.run == 0){ // All the previous pixels are written
+                    points.add(new Point(position, pixel, state.previous, state.index.clone()));
+                    next = pixel + interval;
+                }
+                position = QOIEncoder.encodePixel(state, argb, output, position);
+                ++pixel;
+            }
+        }
+        position = QOIEncoder.flushRun(state, output, position);
+        System.arraycopy(QOISpecification.QOI_EOF, 0, output, position, QOISpecification.QOI_EOF.length);
+        var content = Arrays.copyOf(output, position + QOISpecification.QOI_EOF.length);
+        return new Encoded(content, new QOISeekIndex(interval, content.length, points.toArray(new Point[0])));
+    }
+
+    // ==================================================================================
+    // ============================= SIDECAR FILE METHODS ===============================
+    // ==================================================================================
+
+    /**
+     * Creates the representation in memory of the sidecar file
+     * @return (byte[]) - MAGIC, interval, length of the "Quite Ok Image" file, number of seek points
+     * and the seek points, all the integers are stored in big endian
+     */
+    public byte[] toBytes(){
+        var buffer = ByteBuffer.allocate(MAGIC.length + 3 * 4 + points.length * POINT_SIZE);
+        buffer.put(MAGIC).putInt(interval).putInt(length).putInt(points.length);
+        for (Point point : points){
+            buffer.putInt(point.offset()).putInt(point.pixel()).putInt(point.previous());
+            for (int pixel : point.index()) buffer.putInt(pixel);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Read the seek points from the content of a sidecar file
+     * @param content (byte[]) - Content of the sidecar file (See toBytes)
+     * @return (QOISeekIndex) - The seek points
+     * @throws AssertionError if content is null or is not a valid sidecar file
+     */
+    public static QOISeekIndex fromBytes(byte[] content){
+        assert content != null;
+        assert content.length >= MAGIC.length + 3 * 4 : "The content is too small";
+        assert Arrays.equals(ArrayUtils.extract(content, 0, MAGIC.length), MAGIC) : "Magic number is not correct";
+        var buffer = ByteBuffer.wrap(content, MAGIC.length, content.length - MAGIC.length);
+        var interval = buffer.getInt();
+        var length = buffer.getInt();
+        var points = new Point[buffer.getInt()];
+        assert buffer.remaining() == (long) points.length * POINT_SIZE : "The number of seek points is not correct";
+        for (int i = 0; i < points.length; ++i){
+            var offset = buffer.getInt();
+            var pixel = buffer.getInt();
+            var previous = buffer.getInt();
+            var index = new int[64];
+            for (int slot = 0; slot < index.length; ++slot) index[slot] = buffer.getInt();
+            points[i] = new Point(offset, pixel, previous, index);
+        }
+        return new QOISeekIndex(interval, length, points);
+    }
+
+}
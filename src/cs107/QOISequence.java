@@ -0,0 +1,360 @@
+package cs107;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sequence of frames of the same size encoded with the "Quite Ok Image" chunks.
+ * A key frame is encoded like the data of a "Quite Ok Image" file. Any other frame is encoded against
+ * the frame before it : the chunks encode the difference of each channel with the same pixel of the previous frame,
+ * so an unchanged pixel is a null difference and a band of unchanged pixels is a QOI_OP_RUN of null differences.
+ * A frame which is smaller without its previous frame is encoded like a key frame.
+ * Layout of a file, all the integers are stored in big endian :
+ * <pre>
+ * MAGIC ('qois'), width, height, channels, color space  (same layout as the "Quite Ok Image" header)
+ * number of frames, interval between two key frames
+ * offset in the file of each frame, offset of the QOI_EOF
+ * for each frame : KEY_FRAME or DELTA_FRAME, chunks
+ * QOI_EOF
+ * </pre>
+ * @apiNote Any frame can be decoded without the frames before the last key frame before it (See frame(int))
+ */
+public final class QOISequence {
+
+    /**
+     * Magic Number of a sequence file
+     */
+    public static final byte[] MAGIC = new byte[]{'q', 'o', 'i', 's'};
+
+    /**
+     * Default number of frames between two key frames
+     */
+    public static final int DEFAULT_KEY_FRAME_INTERVAL = 30;
+
+    /**
+     * Tag of a frame encoded on its own
+     */
+    static final byte KEY_FRAME = 0;
+
+    /**
+     * Tag of a frame encoded against the previous frame
+     */
+    static final byte DELTA_FRAME = 1;
+
+    /**
+     * Size of the header : the "Quite Ok Image" header, the number of frames and the interval between two key frames
+     */
+    private static final int HEADER_SIZE = QOISpecification.HEADER_SIZE + 4 + 4;
+
+    /**
+     * Highest bit of each byte of an integer, used to add and subtract the 4 channels at once
+     */
+    private static final int HIGH_BITS = 0x80_80_80_80;
+
+    /**
+     * Receives the decoded frames of a sequence
+     */
+    @FunctionalInterface
+    public interface FrameConsumer {
+        /**
+         * Called once per frame, in order
+         * @param index (int) - Index of the frame
+         * @param frame (Helper.Image) - The frame
+         */
+        void accept(int index, Helper.Image frame);
+    }
+
+    private final byte[] content;
+    private final int width;
+    private final int height;
+    private final byte channels;
+    private final byte colorSpace;
+    private final int keyFrameInterval;
+    /** Offset of each frame in the content, then the offset of the QOI_EOF */
+    private final int[] offsets;
+
+    private QOISequence(byte[] content, int width, int height, byte channels, byte colorSpace, int keyFrameInterval, int[] offsets){
+        this.content = content;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.colorSpace = colorSpace;
+        this.keyFrameInterval = keyFrameInterval;
+        this.offsets = offsets;
+    }
+
+    /**
+     * @return (int) - Number of frames
+     */
+    public int frames(){
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return (int) - Width of the frames
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the frames
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (int) - Maximum number of frames between two key frames
+     */
+    public int keyFrameInterval(){
+        return keyFrameInterval;
+    }
+
+    /**
+     * @param index (int) - Index of the frame
+     * @return (boolean) - true if the frame can be decoded on its own
+     * @throws AssertionError if there is no frame with this index
+     */
+    public boolean isKeyFrame(int index){
+        assert index >= 0 && index < frames();
+        return content[offsets[index]] == KEY_FRAME;
+    }
+
+    // ==================================================================================
+    // ================================ ENCODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Encode frames with a key frame every DEFAULT_KEY_FRAME_INTERVAL frames
+     * @param frames (List of Helper.Image) - The frames, all with the same size, channels and color space
+     * @return (byte[]) - Binary representation of the sequence file
+     * @throws AssertionError if frames is null or empty, or the frames are not alike
+     */
+    public static byte[] encode(List<Helper.Image> frames){
+        return encode(frames, DEFAULT_KEY_FRAME_INTERVAL);
+    }
+
+    /**
+     * Encode frames, each frame against the previous one, with a key frame every keyFrameInterval frames
+     * @param frames (List of Helper.Image) - The frames, all with the same size, channels and color space
+     * @param keyFrameInterval (int) - Maximum number of frames between two key frames, 1 to only have key frames
+     * @return (byte[]) - Binary representation of the sequence file
+     * @throws AssertionError if frames is null or empty, the interval is not positive, the frames are not alike
+     * or the file is too big to fit in an array
+     */
+    public static byte[] encode(List<Helper.Image> frames, int keyFrameInterval){
+        assert frames != null && !frames.isEmpty();
+        assert keyFrameInterval > 0;
+        var first = frames.get(0);
+        var height = first.data().length;
+        var width = first.data()[0].length;
+        long worst = 1 + 5L * width * height + 1;
+        assert worst <= Integer.MAX_VALUE - 8 : "The frames are too big to be encoded in an array";
+        var key = QOIBufferPool.borrowBytes((int) worst);
+        var delta = QOIBufferPool.borrowBytes((int) worst);
+        var index = QOIBufferPool.borrowInts(64);
+
+        var body = new ByteArrayOutputStream();
+        var offsets = new int[frames.size() + 1];
+        var start = HEADER_SIZE + 4 * offsets.length;
+        var keySize = 0; // Size of the last key frame
+        int[][] previous = null;
+        for (int n = 0; n < frames.size(); ++n){
+            var frame = frames.get(n);
+            assert frame.data().length == height && frame.data()[0].length == width : "The frames do not have the same size";
+            assert frame.channels() == first.channels() && frame.color_space() == first.color_space();
+            offsets[n] = start + body.size();
+            var forced = n % keyFrameInterval == 0;
+            var deltaSize = 0;
+            if (!forced){
+                delta[0] = DELTA_FRAME;
+                deltaSize = encodeDelta(frame.data(), previous, new QOIEncoder.State(index), delta, 1);
+            }
+            // The previous frame does not help when the differences are bigger than the last key frame
+            if (forced || deltaSize > keySize){
+                key[0] = KEY_FRAME;
+                var size = QOIEncoder.encodeData(frame.data(), key, 1);
+                if (forced || size < deltaSize){
+                    keySize = size;
+                    body.write(key, 0, size);
+                } else {
+                    body.write(delta, 0, deltaSize);
+                }
+            } else {
+                body.write(delta, 0, deltaSize);
+            }
+            previous = frame.data();
+        }
+        offsets[frames.size()] = start + body.size();
+        QOIBufferPool.release(index);
+        QOIBufferPool.release(delta);
+        QOIBufferPool.release(key);
+
+        long size = (long) offsets[frames.size()] + QOISpecification.QOI_EOF.length;
+        assert size <= Integer.MAX_VALUE - 8 && body.size() < Integer.MAX_VALUE - start : "The sequence is too big to be encoded in an array";
+        var buffer = ByteBuffer.allocate((int) size);
+        buffer.put(MAGIC).put(QOIEncoder.qoiHeader(first), MAGIC.length, QOISpecification.HEADER_SIZE - MAGIC.length);
+        buffer.putInt(frames.size()).putInt(keyFrameInterval);
+        for (int offset : offsets) buffer.putInt(offset);
+        buffer.put(body.toByteArray());
+        buffer.put(QOISpecification.QOI_EOF);
+        return buffer.array();
+    }
+
+    /**
+     * Encode the differences between a frame and the previous frame
+     * @return (int) - Index in output after the encoded data
+     */
+    private static int encodeDelta(int[][] frame, int[][] previous, QOIEncoder.State state, byte[] output, int position){
+        for (int y = 0; y < frame.length; ++y){
+            var row = frame[y];
+            var before = previous[y];
+            if (state.previous == QOISpecification.START_PIXEL_ARGB && Arrays.equals(row, before)){
+                // The whole row is a run of null differences
+                var run = state.run + row.length;
+                for (; run >= 62; run -= 62){
+                    output[position++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | 61);
+                }
+                state.run = run;
+                continue;
+            }
+            for (int x = 0; x < row.length; ++x){
+                position = QOIEncoder.encodePixel(state, difference(row[x], before[x]), output, position);
+            }
+        }
+        return QOIEncoder.flushRun(state, output, position);
+    }
+
+    /**
+     * Difference of each channel of two pixels, modulo 256.
+     * The alpha channel is shifted by 255 so that the difference of two equal pixels is
+     * QOISpecification.START_PIXEL_ARGB : the first unchanged pixels of a frame are already a run
+     * @param pixel (int) - ARGB pixel of the frame
+     * @param previous (int) - ARGB pixel at the same place in the previous frame
+     * @return (int) - The difference
+     */
+    static int difference(int pixel, int previous){
+        var difference = ((pixel | HIGH_BITS) - (previous & ~HIGH_BITS)) ^ ((pixel ^ ~previous) & HIGH_BITS);
+        return difference + QOISpecification.START_PIXEL_ARGB;
+    }
+
+    /**
+     * Inverse of difference : add the difference to each channel of the previous pixel, modulo 256
+     * @param difference (int) - Difference computed by difference(int, int)
+     * @param previous (int) - ARGB pixel at the same place in the previous frame
+     * @return (int) - ARGB pixel of the frame
+     */
+    static int sum(int difference, int previous){
+        difference -= QOISpecification.START_PIXEL_ARGB;
+        return ((difference & ~HIGH_BITS) + (previous & ~HIGH_BITS)) ^ ((difference ^ previous) & HIGH_BITS);
+    }
+
+    // ==================================================================================
+    // ================================ DECODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Read the header and the offsets of the frames of a sequence file, the frames are decoded on demand
+     * @param content (byte[]) - Content of the sequence file (See encode)
+     * @return (QOISequence) - The sequence
+     * @throws AssertionError if content is null or is not a valid sequence file
+     */
+    public static QOISequence read(byte[] content){
+        assert content != null;
+        assert content.length >= HEADER_SIZE + 4 + QOISpecification.QOI_EOF.length : "The content is too small";
+        assert Arrays.equals(content, 0, MAGIC.length, MAGIC, 0, MAGIC.length) : "Magic number is not correct";
+        assert ArrayUtils.endsWith(content, QOISpecification.QOI_EOF);
+        var header = Arrays.copyOf(content, QOISpecification.HEADER_SIZE);
+        System.arraycopy(QOISpecification.QOI_MAGIC, 0, header, 0, MAGIC.length);
+        var decoded = QOIDecoder.decodeHeader(header);
+        var buffer = ByteBuffer.wrap(content);
+        var frames = buffer.getInt(QOISpecification.HEADER_SIZE);
+        var keyFrameInterval = buffer.getInt(QOISpecification.HEADER_SIZE + 4);
+        assert frames > 0 && keyFrameInterval > 0;
+        assert (long) HEADER_SIZE + 4L * (frames + 1) <= content.length : "The offsets of the frames are not valid";
+        var offsets = new int[frames + 1];
+        for (int n = 0; n <= frames; ++n){
+            offsets[n] = buffer.getInt(HEADER_SIZE + 4 * n);
+            assert offsets[n] >= (n == 0 ? HEADER_SIZE + 4 * offsets.length : offsets[n - 1] + 1) : "The offsets of the frames are not valid";
+        }
+        assert offsets[frames] + QOISpecification.QOI_EOF.length == content.length : "The offsets of the frames are not valid";
+        assert content[offsets[0]] == KEY_FRAME : "The first frame is not a key frame";
+        return new QOISequence(content, decoded[0], decoded[1], (byte) decoded[2], (byte) decoded[3], keyFrameInterval, offsets);
+    }
+
+    /**
+     * Decode a frame. Only the frames from the last key frame before it are decoded
+     * @param index (int) - Index of the frame
+     * @return (Helper.Image) - The frame
+     * @throws AssertionError if there is no frame with this index or the content is not valid
+     */
+    public Helper.Image frame(int index){
+        assert index >= 0 && index < frames();
+        var key = index;
+        while (!isKeyFrame(key)) --key;
+        var pixels = QOIBufferPool.borrowInts(width * height);
+        for (int n = key; n <= index; ++n){
+            decodeFrame(n, pixels);
+        }
+        var frame = toImage(pixels);
+        QOIBufferPool.release(pixels);
+        return frame;
+    }
+
+    /**
+     * Decode all the frames in order, each frame is decoded once
+     * @param consumer (FrameConsumer) - Receives each frame as soon as it is decoded
+     * @throws AssertionError if consumer is null or the content is not valid
+     */
+    public void forEachFrame(FrameConsumer consumer){
+        assert consumer != null;
+        var pixels = QOIBufferPool.borrowInts(width * height);
+        for (int n = 0; n < frames(); ++n){
+            decodeFrame(n, pixels);
+            consumer.accept(n, toImage(pixels));
+        }
+        QOIBufferPool.release(pixels);
+    }
+
+    /**
+     * Decode a frame in place of the previous frame
+     * @param n (int) - Index of the frame
+     * @param pixels (int[]) - The previous frame (ignored for a key frame), replaced by the frame n
+     */
+    private void decodeFrame(int n, int[] pixels){
+        var size = width * height;
+        var index = QOIBufferPool.borrowInts(64);
+        var state = new QOIDecoder.State(offsets[n] + 1, index);
+        if (content[offsets[n]] == KEY_FRAME){
+            var written = QOIDecoder.decodePixels(state, content, offsets[n + 1], pixels, 0, size);
+            assert written == size : "The data does not contain enough pixels";
+        } else {
+            var differences = QOIBufferPool.borrowInts(Math.min(size, 1 << 14));
+            for (int from = 0; from < size; ){
+                var to = Math.min(size, from + differences.length);
+                var written = QOIDecoder.decodePixels(state, content, offsets[n + 1], differences, 0, to - from);
+                assert written == to - from : "The data does not contain enough pixels";
+                for (int i = from; i < to; ++i){
+                    pixels[i] = sum(differences[i - from], pixels[i]);
+                }
+                from = to;
+            }
+            QOIBufferPool.release(differences);
+        }
+        // A frame ends with its last pixel : no chunk and no run may be left for the next frame
+        assert state.position == offsets[n + 1] && state.run == 0 : "The data of the frame is not valid";
+        QOIBufferPool.release(index);
+    }
+
+    private Helper.Image toImage(int[] pixels){
+        var data = new int[height][];
+        for (int y = 0; y < height; ++y){
+            data[y] = Arrays.copyOfRange(pixels, y * width, (y + 1) * width);
+        }
+        return Helper.generateImage(data, channels, colorSpace);
+    }
+
+}
@@ -77,6 +77,11 @@ public final class QOISpecification {
      */
     public static final byte[] START_PIXEL = new byte[]{0, 0, 0, (byte) 255};
 
+    /**
+     * START_PIXEL packed as an ARGB integer (same format as Helper.Image::data)
+     */
+    public static final int START_PIXEL_ARGB = 0xFF_00_00_00;
+
     // ==================================================================================
     // ============================ "Quite Ok Image" EOF ================================
     // ==================================================================================
@@ -136,4 +141,16 @@ public final class QOISpecification {
         return (byte) (tmp < 0 ? tmp + 64 : tmp);
     }
 
+    /**
+     * Hash a given packed pixel using the hash function specific to "Quite Ok Image" format
+     * @apiNote Same result as hash(byte[]) on the RGBA channels of the pixel
+     * @param pixel (int) - Pixel to hash, packed as ARGB
+     * @return (byte) - hash of the pixel
+     */
+    public static byte hash(int pixel){
+        // 256 is a multiple of 64, so working on unsigned channels gives the same index as the signed version
+        var tmp = ((pixel >>> 16) & 0xFF) * 3 + ((pixel >>> 8) & 0xFF) * 5 + (pixel & 0xFF) * 7 + (pixel >>> 24) * 11;
+        return (byte) (tmp & 0b111111);
+    }
+
 }
\ No newline at end of file
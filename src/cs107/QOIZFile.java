@@ -0,0 +1,211 @@
+package cs107;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * "Quite Ok Image" files whose chunks are compressed with Deflate (LZ77 and Huffman codes, from java.util.zip).
+ * The stream of chunks of QOIEncoder is split in blocks compressed independently,
+ * and the decoder inflates one block at a time straight into the chunk interpreter of QOIDecoder.
+ * Layout of a file, all the integers are stored in big endian :
+ * <pre>
+ * MAGIC ('qoiz'), width, height, channels, color space  (same layout as the "Quite Ok Image" header)
+ * size of the uncompressed chunks, size of a block
+ * for each block : size of the compressed block, compressed block (zlib format)
+ * QOI_EOF
+ * </pre>
+ * @apiNote The files start with their own magic number, plain "Quite Ok Image" files stay the default :
+ * decode(byte[]) reads both formats
+ */
+public final class QOIZFile {
+
+    /**
+     * Magic Number of a compressed file
+     */
+    public static final byte[] MAGIC = new byte[]{'q', 'o', 'i', 'z'};
+
+    /**
+     * Size of the header : the "Quite Ok Image" header, the size of the chunks and the size of a block
+     */
+    public static final int HEADER_SIZE = QOISpecification.HEADER_SIZE + 4 + 4;
+
+    /**
+     * Default number of bytes of chunks in each block
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 18;
+
+    // Hide default constructor
+    private QOIZFile(){}
+
+    /**
+     * @param content (byte[]) - Content of a file
+     * @return (boolean) - true if the content starts with the magic number of a compressed file
+     */
+    public static boolean isQoiz(byte[] content){
+        return content != null && content.length >= MAGIC.length && Arrays.equals(content, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    // ==================================================================================
+    // ================================ ENCODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Creates the representation in memory of the compressed file of an image,
+     * with blocks of DEFAULT_BLOCK_SIZE bytes compressed with Deflater.BEST_SPEED
+     * @param image (Helper.Image) - Image to encode
+     * @return (byte[]) - Binary representation of the compressed file
+     * @throws AssertionError if the image is null or too big to fit in an array
+     */
+    public static byte[] qoizFile(Helper.Image image){
+        return qoizFile(image, DEFAULT_BLOCK_SIZE, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Creates the representation in memory of the compressed file of an image
+     * @param image (Helper.Image) - Image to encode
+     * @param blockSize (int) - Number of bytes of chunks in each block
+     * @param level (int) - Compression level of Deflater, from 0 (no compression) to 9 (best compression)
+     * @return (byte[]) - Binary representation of the compressed file
+     * @throws AssertionError if the image is null, too big to fit in an array, the block size is not positive
+     * or the level is not valid
+     */
+    public static byte[] qoizFile(Helper.Image image, int blockSize, int level){
+        assert image != null;
+        assert blockSize > 0;
+        assert level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+        long worst = 5L * image.data().length * image.data()[0].length;
+        assert worst <= Integer.MAX_VALUE - 8 : "The image is too big to be encoded in an array";
+        var chunks = QOIBufferPool.borrowBytes((int) worst);
+        var size = QOIEncoder.encodeData(image.data(), chunks, 0);
+
+        var blocks = (int) (((long) size + blockSize - 1) / blockSize);
+        // Bound of zlib (deflateBound) for each block, its size and the header and checksum of zlib
+        var bound = (long) HEADER_SIZE + size + (size >> 12) + (size >> 14) + (size >> 25)
+                + (4L + 13 + 6 + 3) * blocks + QOISpecification.QOI_EOF.length;
+        assert bound <= Integer.MAX_VALUE - 8 : "The image is too big to be encoded in an array";
+        var output = QOIBufferPool.borrowBytes((int) bound);
+        var buffer = ByteBuffer.wrap(output);
+        buffer.put(MAGIC).put(QOIEncoder.qoiHeader(image), MAGIC.length, QOISpecification.HEADER_SIZE - MAGIC.length);
+        buffer.putInt(size).putInt(blockSize);
+
+        var deflater = new Deflater(level);
+        try {
+            for (int start = 0; start < size; start += blockSize){
+                deflater.reset();
+                deflater.setInput(chunks, start, Math.min(blockSize, size - start));
+                deflater.finish();
+                var lengthPosition = buffer.position();
+                var position = lengthPosition + 4;
+                while (!deflater.finished()){
+                    assert position < output.length : "The bound of the compressed size is too small";
+                    position += deflater.deflate(output, position, output.length - position);
+                }
+                buffer.putInt(lengthPosition, position - lengthPosition - 4);
+                buffer.position(position);
+            }
+        } finally {
+            deflater.end();
+        }
+        buffer.put(QOISpecification.QOI_EOF);
+        var file = Arrays.copyOf(output, buffer.position());
+        QOIBufferPool.release(output);
+        QOIBufferPool.release(chunks);
+        return file;
+    }
+
+    // ==================================================================================
+    // ================================ DECODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Decode a compressed file, block by block : only one inflated block is kept in memory
+     * @param content (byte[]) - Content of the compressed file (See qoizFile)
+     * @return (Helper.Image) - Decoded image
+     * @throws AssertionError if content is null or is not a valid compressed file
+     */
+    public static Helper.Image decodeQoizFile(byte[] content){
+        assert isQoiz(content) : "Magic number is not correct";
+        assert content.length >= HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        assert ArrayUtils.endsWith(content, QOISpecification.QOI_EOF);
+        var input = ByteBuffer.wrap(content);
+        // The header has the layout of the "Quite Ok Image" header
+        var header = Arrays.copyOf(content, QOISpecification.HEADER_SIZE);
+        System.arraycopy(QOISpecification.QOI_MAGIC, 0, header, 0, MAGIC.length);
+        var decoded = QOIDecoder.decodeHeader(header);
+        var width = decoded[0];
+        var height = decoded[1];
+        var size = input.getInt(QOISpecification.HEADER_SIZE);
+        var blockSize = input.getInt(QOISpecification.HEADER_SIZE + 4);
+        assert size >= 0 && blockSize > 0;
+        // Worst case : every pixel is written with the QOI_OP_RGBA schema
+        assert size <= 5L * width * height : "The size of the chunks is not valid";
+
+        var image = new int[height][width];
+        // The last chunk of a block can end in the next one : at most 4 bytes are carried to the next block.
+        // No block is longer than the chunks, whatever block size the header claims
+        var buffer = QOIBufferPool.borrowBytes(Math.min(blockSize, size) + 4);
+        var index = QOIBufferPool.borrowInts(64);
+        var state = new QOIDecoder.State(0, index);
+        var inflater = new Inflater();
+        var position = HEADER_SIZE;
+        var limit = 0;
+        var inflated = 0;
+        var x = 0;
+        var y = 0;
+        try {
+            while (inflated < size){
+                var compressed = input.getInt(position);
+                assert compressed >= 0 && position + 4 + compressed <= content.length - QOISpecification.QOI_EOF.length;
+                var length = Math.min(blockSize, size - inflated);
+                // Move the bytes of the unfinished chunk at the beginning of the buffer
+                var carry = limit - state.position;
+                System.arraycopy(buffer, state.position, buffer, 0, carry);
+                state.position = 0;
+                inflater.reset();
+                inflater.setInput(content, position + 4, compressed);
+                var read = 0;
+                while (read < length){
+                    var count = inflater.inflate(buffer, carry + read, length - read);
+                    if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                    read += count;
+                }
+                assert read == length : "The block does not have the expected size";
+                position += 4 + compressed;
+                inflated += length;
+                limit = carry + length;
+                // A chunk is at most 5 bytes long, only decode the chunks fully present in the buffer
+                var end = inflated == size ? limit : limit - 4;
+                while (y < height){
+                    x = QOIDecoder.decodePixels(state, buffer, end, image[y], x, width);
+                    if (x < width) break;
+                    x = 0;
+                    ++y;
+                }
+            }
+        } catch (DataFormatException e){
+            throw new AssertionError("The block is not valid : " + e.getMessage());
+        } finally {
+            inflater.end();
+            QOIBufferPool.release(index);
+            QOIBufferPool.release(buffer);
+        }
+        assert y == height : "The data does not contain enough pixels";
+        assert position + QOISpecification.QOI_EOF.length == content.length : "The data does not end with QOI_EOF";
+        return Helper.generateImage(image, (byte) decoded[2], (byte) decoded[3]);
+    }
+
+    /**
+     * Decode a plain or a compressed "Quite Ok Image" file, the format is found with the magic number
+     * @param content (byte[]) - Content of the file
+     * @return (Helper.Image) - Decoded image
+     * @throws AssertionError if content is null or is neither a valid "Quite Ok Image" file nor a valid compressed file
+     */
+    public static Helper.Image decode(byte[] content){
+        assert content != null;
+        return isQoiz(content) ? decodeQoizFile(content) : QOIDecoder.decodeQoiFilePacked(content);
+    }
+
+}